@@ -11,6 +11,7 @@ import ca.vanzyl.provisio.archive.tar.TarGzArchiveSource;
 import ca.vanzyl.provisio.archive.zip.ZipArchiveSource;
 import java.io.IOException;
 import java.nio.file.Path;
+import java.util.Set;
 
 enum ArchiveFormat {
     TAR_GZ,
@@ -32,16 +33,35 @@ enum ArchiveFormat {
     }
 
     Source openSource(Path archive) {
+        return openSource(archive, 1);
+    }
+
+    Source openSource(Path archive, int decompressionThreads) {
         if (this == ZIP) {
             return new ZipArchiveSource(archive);
         }
-        return new TarGzArchiveSource(archive);
+        return new TarGzArchiveSource(archive, decompressionThreads, new CompressionThreadFactory("provisio-gunzip"));
+    }
+
+    /** Visits only the named entries, reading as little of the archive as its format allows. */
+    void forEachEntry(Path archive, Set<String> names, int decompressionThreads, Source.EntryConsumer consumer)
+            throws IOException {
+        if (this == ZIP) {
+            new ZipArchiveSource(archive).forEachEntry(names, consumer);
+        } else {
+            new TarGzArchiveSource(archive, decompressionThreads, new CompressionThreadFactory("provisio-gunzip"))
+                    .forEachEntry(names, consumer);
+        }
     }
 
-    ArchiveWriter openWriter(Path output, boolean posixLongFileMode, GzipCompressionOptions gzipCompression)
+    ArchiveWriter openWriter(
+            Path output,
+            boolean posixLongFileMode,
+            GzipCompressionOptions gzipCompression,
+            ZipCompressionOptions zipCompression)
             throws IOException {
         if (this == ZIP) {
-            return new ZipArchiveWriter(output);
+            return new ZipArchiveWriter(output, zipCompression);
         }
         return new TarGzArchiveWriter(output, posixLongFileMode, gzipCompression);
     }
@@ -7,6 +7,7 @@
  */
 package ca.vanzyl.provisio.archive;
 
+import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
@@ -22,6 +23,15 @@ final class ArchiveOptions {
     private final List<String> hardLinkIncludes;
     private final List<String> hardLinkExcludes;
     private final GzipCompressionOptions gzipCompression;
+    private final ZipCompressionOptions zipCompression;
+    private final int contentPrefetchThreads;
+    private final long contentPrefetchBytes;
+    private final int fingerprintThreads;
+    private final Path fingerprintCacheFile;
+    private final int fingerprintCacheEntries;
+    private final long spoolMemoryBytes;
+    private final boolean appendOnlySpool;
+    private final boolean compressedSpool;
 
     ArchiveOptions(Archiver.ArchiverBuilder builder) {
         executables = immutableCopy(builder.executables);
@@ -31,7 +41,31 @@ final class ArchiveOptions {
         posixLongFileMode = builder.posixLongFileMode;
         hardLinkIncludes = immutableCopy(builder.hardLinkIncludes);
         hardLinkExcludes = immutableCopy(builder.hardLinkExcludes);
-        gzipCompression = new GzipCompressionOptions(builder.gzipCompressionThreads, builder.gzipCompressionLevel);
+        int gzipChunkSize = builder.gzipExpectedSize < 0
+                ? builder.gzipCompressionChunkSize
+                : GzipCompressionOptions.automaticChunkSize(builder.gzipExpectedSize, builder.gzipCompressionThreads);
+        gzipCompression = new GzipCompressionOptions(
+                builder.gzipCompressionThreads,
+                builder.gzipCompressionLevel,
+                builder.gzipPresetDictionary,
+                gzipChunkSize,
+                builder.compressionExecutor,
+                builder.gzipMemberIndex);
+        zipCompression = new ZipCompressionOptions(
+                builder.zipCompressionThreads,
+                builder.compressionExecutor,
+                builder.recompressZipEntries,
+                builder.zipStoredEntries,
+                builder.zipStoreIncompressibleEntries);
+        ContentPrefetcher.validate(builder.contentPrefetchThreads, builder.contentPrefetchBytes);
+        contentPrefetchThreads = builder.contentPrefetchThreads;
+        contentPrefetchBytes = builder.contentPrefetchBytes;
+        fingerprintThreads = builder.fingerprintThreads;
+        fingerprintCacheFile = builder.fingerprintCacheFile;
+        fingerprintCacheEntries = builder.fingerprintCacheEntries;
+        spoolMemoryBytes = builder.spoolMemoryBytes;
+        appendOnlySpool = builder.appendOnlySpool;
+        compressedSpool = builder.compressedSpool;
     }
 
     List<String> executables() {
@@ -66,6 +100,48 @@ final class ArchiveOptions {
         return gzipCompression;
     }
 
+    ZipCompressionOptions zipCompression() {
+        return zipCompression;
+    }
+
+    /** Returns the number of content prefetch workers, or zero when entries are read as they are written. */
+    int contentPrefetchThreads() {
+        return contentPrefetchThreads;
+    }
+
+    long contentPrefetchBytes() {
+        return contentPrefetchBytes;
+    }
+
+    /** Returns the number of content fingerprint workers, where one fingerprints on the assembly thread. */
+    int fingerprintThreads() {
+        return fingerprintThreads;
+    }
+
+    /** Returns the persistent fingerprint cache, or {@code null} when fingerprints are not cached. */
+    Path fingerprintCacheFile() {
+        return fingerprintCacheFile;
+    }
+
+    int fingerprintCacheEntries() {
+        return fingerprintCacheEntries;
+    }
+
+    /** Returns the bytes of retained content that may be held in memory instead of temporary files. */
+    long spoolMemoryBytes() {
+        return spoolMemoryBytes;
+    }
+
+    /** Returns whether retained content is appended to shared spool segments rather than one file per entry. */
+    boolean appendOnlySpool() {
+        return appendOnlySpool;
+    }
+
+    /** Returns whether spooled content on disk is DEFLATE compressed. */
+    boolean compressedSpool() {
+        return compressedSpool;
+    }
+
     private static <T> List<T> immutableCopy(List<T> values) {
         return Collections.unmodifiableList(new ArrayList<>(values));
     }
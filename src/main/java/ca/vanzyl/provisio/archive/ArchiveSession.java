@@ -7,13 +7,21 @@
  */
 package ca.vanzyl.provisio.archive;
 
+import ca.vanzyl.provisio.archive.source.DurableContentSource;
+import java.io.ByteArrayInputStream;
 import java.io.Closeable;
 import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
@@ -25,17 +33,40 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
 import org.apache.commons.io.IOUtils;
 import org.codehaus.plexus.util.SelectorUtils;
 
 /** Mutable state and temporary resources for exactly one archive operation. */
 final class ArchiveSession implements Closeable {
 
+    // Retained entries fingerprinted ahead of the one being written, per fingerprint worker
+    private static final int FINGERPRINTS_PER_THREAD = 4;
+    // Written bytes handed to a fingerprint worker but not yet hashed, per entry
+    private static final int FINGERPRINT_CHUNK_SIZE = 64 * 1024;
+    private static final int FINGERPRINT_CHUNKS_IN_FLIGHT = 8;
+
     private final ArchiveFormat format;
     private final ArchiveOptions options;
     private final ArchiveWriter writer;
     private final ContentSpool contentSpool;
+    private final ContentPrefetcher prefetcher;
+    private final ExecutorService fingerprintExecutor;
+    private final BufferArena fingerprintChunks =
+            new BufferArena(FINGERPRINT_CHUNK_SIZE, FINGERPRINT_CHUNKS_IN_FLIGHT + 1);
+    private final FingerprintCache fingerprintCache;
+    private final String digestAlgorithm;
     private final Selector hardLinkSelector;
     private final Map<Long, List<ContentTarget>> hardLinkTargets = new HashMap<>();
     private final Map<MetadataIdentity, String> metadataHardLinkTargets = new HashMap<>();
@@ -49,8 +80,21 @@ final class ArchiveSession implements Closeable {
     ArchiveSession(Path output, ArchiveFormat format, ArchiveOptions options) throws IOException {
         this.format = format;
         this.options = options;
-        contentSpool = new ContentSpool(output.getParent());
-        writer = format.openWriter(output, options.posixLongFileMode(), options.gzipCompression());
+        contentSpool = new ContentSpool(
+                output.getParent(), options.spoolMemoryBytes(), options.appendOnlySpool(), options.compressedSpool());
+        prefetcher = options.contentPrefetchThreads() > 0
+                ? new ContentPrefetcher(options.contentPrefetchThreads(), options.contentPrefetchBytes())
+                : null;
+        fingerprintExecutor = options.fingerprintThreads() > 1
+                ? Executors.newFixedThreadPool(
+                        options.fingerprintThreads(), new CompressionThreadFactory("provisio-fingerprint"))
+                : null;
+        fingerprintCache = options.fingerprintCacheFile() != null
+                ? FingerprintCache.read(options.fingerprintCacheFile(), options.fingerprintCacheEntries())
+                : null;
+        digestAlgorithm = newDigest().getAlgorithm();
+        writer = format.openWriter(
+                output, options.posixLongFileMode(), options.gzipCompression(), options.zipCompression());
         if (!options.hardLinkIncludes().isEmpty() || !options.hardLinkExcludes().isEmpty()) {
             hardLinkSelector = new Selector(options.hardLinkIncludes(), options.hardLinkExcludes());
         } else {
@@ -62,18 +106,67 @@ final class ArchiveSession implements Closeable {
         requireActive();
         ArchivePath destinationPrefix = destinationPrefix(sourceSpec);
         try (Source source = sourceSpec.source()) {
-            source.forEachEntry(entry -> addSourceEntry(sourceSpec, source, destinationPrefix, entry));
+            Source.EntryConsumer consumer = entry -> addSourceEntry(sourceSpec, source, destinationPrefix, entry);
+            if (prefetcher == null || !(source instanceof DurableContentSource)) {
+                // Other sources may reuse or delete their files once the callback returns, so nothing is held back
+                source.forEachEntry(consumer);
+            } else {
+                source.forEachEntry(entry -> {
+                    // Excluded entries are never written, so their content is not read ahead
+                    ArchivePath sourcePath = ArchivePath.parse(entry.getName(), "source entry path");
+                    if (sourceSpec.includes(sourcePath.entryName(entry.getType()))) {
+                        prefetcher.accept(entry, consumer);
+                    }
+                });
+                prefetcher.drain(consumer);
+            }
         }
     }
 
     void finish() throws IOException {
         requireActive();
-        for (PendingEntry entry : entries.values()) {
-            writeEntry(entry);
+        List<PendingEntry> pendingEntries = new ArrayList<>(entries.values());
+        int fingerprinted = 0;
+        for (int index = 0; index < pendingEntries.size(); index++) {
+            if (fingerprintExecutor != null) {
+                fingerprinted = fingerprintAhead(pendingEntries, fingerprinted, index);
+            }
+            writeEntry(pendingEntries.get(index));
+        }
+        if (fingerprintCache != null) {
+            fingerprintCache.write();
         }
         finished = true;
     }
 
+    /**
+     * Starts fingerprinting the retained entries that will need a verified hard-link decision, up to a bounded number of
+     * entries beyond the one about to be written, and returns the index of the first entry not yet considered. Live
+     * files are left to {@link #writeAndFingerprint}, which hashes the bytes actually written, as they may change
+     * before the entry is written.
+     */
+    private int fingerprintAhead(List<PendingEntry> pendingEntries, int fingerprinted, int index) {
+        int limit = Math.min(pendingEntries.size(), index + options.fingerprintThreads() * FINGERPRINTS_PER_THREAD);
+        for (int next = fingerprinted; next < limit; next++) {
+            PendingEntry pendingEntry = pendingEntries.get(next);
+            EntryContent content = pendingEntry.entry.getContent();
+            if (pendingEntry.hardLinkEligible
+                    && pendingEntry.metadataGroup == null
+                    && content.isRepeatable()
+                    && !(content instanceof EntryContents.FileContent)) {
+                ContentFingerprint cached = cachedFingerprint(pendingEntry.fingerprintKey);
+                if (cached != null) {
+                    pendingEntry.fingerprint = CompletableFuture.completedFuture(cached);
+                    continue;
+                }
+                String entryName = pendingEntry.entry.getName();
+                MessageDigest digest = newDigest();
+                pendingEntry.fingerprint = fingerprintExecutor.submit(() -> fingerprint(entryName, content, digest));
+            }
+        }
+        return Math.max(fingerprinted, limit);
+    }
+
     private void addSourceEntry(SourceSpec sourceSpec, Source source, ArchivePath destinationPrefix, SourceEntry entry)
             throws IOException {
         ArchivePath sourcePath = ArchivePath.parse(entry.getName(), "source entry path");
@@ -188,6 +281,9 @@ final class ArchiveSession implements Closeable {
 
     private void addEntry(String entryName, OutputEntry entry, boolean hardLinkEligible) throws IOException {
         boolean eligible = format == ArchiveFormat.TAR_GZ && entry.getType() == EntryType.FILE && hardLinkEligible;
+        // Keyed by the source content, which name order replaces with a spool
+        String fingerprintKey =
+                eligible && fingerprintCache != null ? fingerprintCache.key(entry.getContent(), digestAlgorithm) : null;
         if (options.entryOrder() == EntryOrder.NAME) {
             MetadataGroup metadataGroup = null;
             if (eligible && options.contentIdentityMode() == ContentIdentityMode.SIZE_AND_CRC32) {
@@ -203,10 +299,10 @@ final class ArchiveSession implements Closeable {
             if (entry.getType() == EntryType.FILE && metadataGroup == null) {
                 entry = entry.withContent(contentSpool.stabilize(entry.getContent()));
             }
-            PendingEntry pendingEntry = new PendingEntry(entry, eligible, metadataGroup);
+            PendingEntry pendingEntry = new PendingEntry(entry, eligible, metadataGroup, fingerprintKey);
             entries.put(entryName, pendingEntry);
         } else {
-            writeEntry(new PendingEntry(entry, eligible, null));
+            writeEntry(new PendingEntry(entry, eligible, null, fingerprintKey));
         }
     }
 
@@ -230,7 +326,7 @@ final class ArchiveSession implements Closeable {
             }
         }
 
-        writeVerifiedEntry(entry);
+        writeVerifiedEntry(entry, pendingEntry.fingerprint, pendingEntry.fingerprintKey);
     }
 
     private void writeNameOrderedMetadataEntry(OutputEntry entry, MetadataGroup group) throws IOException {
@@ -252,17 +348,27 @@ final class ArchiveSession implements Closeable {
         }
     }
 
-    private void writeVerifiedEntry(OutputEntry entry) throws IOException {
+    private void writeVerifiedEntry(OutputEntry entry, Future<ContentFingerprint> precomputed, String fingerprintKey)
+            throws IOException {
         long declaredSize = entry.getContent().size();
         List<ContentTarget> candidates = hardLinkTargets.get(declaredSize);
-        if (candidates == null && !metadataHardLinkSizes.contains(declaredSize)) {
-            ContentFingerprint fingerprint = writeAndFingerprint(entry);
-            addHardLinkTarget(declaredSize, fingerprint, entry.getName());
-            addMetadataHardLinkTarget(fingerprint.metadataIdentity(), entry.getName());
+        ContentFingerprint cached = precomputed == null ? cachedFingerprint(fingerprintKey) : null;
+        if (precomputed == null && candidates == null && !metadataHardLinkSizes.contains(declaredSize)) {
+            ContentFingerprint fingerprint = cached;
+            if (fingerprint == null) {
+                fingerprint = writeAndFingerprint(entry);
+                cacheFingerprint(fingerprintKey, fingerprint);
+            } else {
+                writer.write(entry);
+            }
+            addVerifiedHardLinkTarget(declaredSize, fingerprint, entry);
             return;
         }
 
-        FingerprintedContent fingerprintedContent = fingerprintContent(entry.getName(), entry.getContent());
+        FingerprintedContent fingerprintedContent = precomputed == null
+                ? fingerprintContent(entry.getName(), entry.getContent(), cached)
+                : new FingerprintedContent(entry.getContent(), await(entry.getName(), precomputed));
+        cacheFingerprint(fingerprintKey, fingerprintedContent.fingerprint);
         String metadataTarget = metadataHardLinkTargets.get(fingerprintedContent.fingerprint.metadataIdentity());
         if (metadataTarget != null) {
             writer.write(OutputEntry.hardLink(entry.getName(), metadataTarget, entry));
@@ -270,31 +376,88 @@ final class ArchiveSession implements Closeable {
         }
         if (candidates != null) {
             for (ContentTarget candidate : candidates) {
-                if (candidate.fingerprint.equals(fingerprintedContent.fingerprint)) {
+                if (candidate.fingerprint.equals(fingerprintedContent.fingerprint)
+                        && sameContent(candidate, fingerprintedContent.content)) {
                     writer.write(OutputEntry.hardLink(entry.getName(), candidate.entryName, entry));
                     return;
                 }
             }
         }
 
-        writer.write(entry.withContent(fingerprintedContent.content));
-        addHardLinkTarget(declaredSize, fingerprintedContent.fingerprint, entry.getName());
-        addMetadataHardLinkTarget(fingerprintedContent.fingerprint.metadataIdentity(), entry.getName());
+        OutputEntry stableEntry = entry.withContent(fingerprintedContent.content);
+        writer.write(stableEntry);
+        addVerifiedHardLinkTarget(declaredSize, fingerprintedContent.fingerprint, stableEntry);
+    }
+
+    /**
+     * Confirms a digest match byte for byte when the mode requires it. A candidate whose content is no longer readable
+     * is never confirmed, so the entry is written instead of linked.
+     */
+    private boolean sameContent(ContentTarget candidate, EntryContent content) throws IOException {
+        if (options.contentIdentityMode() != ContentIdentityMode.FAST_VERIFIED) {
+            return true;
+        }
+        if (candidate.content == null) {
+            return false;
+        }
+        try (InputStream candidateStream = candidate.content.open();
+                InputStream contentStream = content.open()) {
+            return IOUtils.contentEquals(candidateStream, contentStream);
+        }
     }
 
+    /**
+     * Writes {@code entry} and fingerprints the bytes the archive writer consumed. With fingerprint workers, the writer
+     * thread only copies those bytes into pooled chunks that a worker hashes.
+     */
     private ContentFingerprint writeAndFingerprint(OutputEntry entry) throws IOException {
-        FingerprintingContent content = new FingerprintingContent(entry.getName(), entry.getContent());
-        writer.write(entry.withContent(content));
+        FingerprintSink sink = fingerprintExecutor != null
+                ? new WorkerFingerprintSink(entry.getName(), newDigest())
+                : new DigestFingerprintSink(newDigest());
+        FingerprintingContent content = new FingerprintingContent(entry.getName(), entry.getContent(), sink);
+        try {
+            writer.write(entry.withContent(content));
+        } catch (IOException | RuntimeException e) {
+            sink.cancel();
+            throw e;
+        }
         return content.fingerprint();
     }
 
-    private FingerprintedContent fingerprintContent(String entryName, EntryContent content) throws IOException {
+    private FingerprintedContent fingerprintContent(String entryName, EntryContent content, ContentFingerprint cached)
+            throws IOException {
         EntryContent stableContent = content.isRepeatable() ? content : contentSpool.stabilize(content);
-        return new FingerprintedContent(stableContent, fingerprint(entryName, stableContent));
+        return new FingerprintedContent(
+                stableContent, cached != null ? cached : fingerprint(entryName, stableContent, newDigest()));
     }
 
-    private ContentFingerprint fingerprint(String entryName, EntryContent content) throws IOException {
-        MessageDigest digest = sha256();
+    private ContentFingerprint cachedFingerprint(String fingerprintKey) {
+        return fingerprintKey == null ? null : fingerprintCache.get(fingerprintKey);
+    }
+
+    private void cacheFingerprint(String fingerprintKey, ContentFingerprint fingerprint) {
+        if (fingerprintKey != null) {
+            fingerprintCache.put(fingerprintKey, fingerprint);
+        }
+    }
+
+    private static ContentFingerprint await(String entryName, Future<ContentFingerprint> fingerprint)
+            throws IOException {
+        try {
+            return fingerprint.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while fingerprinting archive entry " + entryName, e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            throw cause instanceof IOException
+                    ? (IOException) cause
+                    : new IOException("Failed to fingerprint archive entry " + entryName, cause);
+        }
+    }
+
+    private static ContentFingerprint fingerprint(String entryName, EntryContent content, MessageDigest digest)
+            throws IOException {
         CRC32 crc32 = new CRC32();
         long size = 0;
         byte[] buffer = new byte[8192];
@@ -310,10 +473,25 @@ final class ArchiveSession implements Closeable {
         return new ContentFingerprint(size, crc32.getValue(), digest.digest());
     }
 
-    private void addHardLinkTarget(long declaredSize, ContentFingerprint fingerprint, String entryName) {
+    private void addVerifiedHardLinkTarget(long declaredSize, ContentFingerprint fingerprint, OutputEntry entry) {
+        // Only content that outlives its source callback can confirm a later match byte for byte
+        EntryContent content = null;
+        if (options.contentIdentityMode() == ContentIdentityMode.FAST_VERIFIED) {
+            content = entry.getContent() instanceof EntryContents.FileContent
+                            || entry.getContent() instanceof EntryContents.BytesContent
+                            || entry.getContent() instanceof MemoryContent
+                            || entry.getContent() instanceof SegmentedSpool.SpooledContent
+                            || entry.getContent() instanceof CompressedContent
+                    ? entry.getContent()
+                    : ContentPrefetcher.source(entry.getContent());
+        }
         hardLinkTargets
                 .computeIfAbsent(declaredSize, ignored -> new ArrayList<>())
-                .add(new ContentTarget(fingerprint, entryName));
+                .add(new ContentTarget(fingerprint, entry.getName(), content));
+        // Computed CRC-32 only identifies content when the mode trusts it
+        if (options.contentIdentityMode() == ContentIdentityMode.SIZE_AND_CRC32) {
+            addMetadataHardLinkTarget(fingerprint.metadataIdentity(), entry.getName());
+        }
     }
 
     private void addMetadataHardLinkTarget(MetadataIdentity identity, String entryName) {
@@ -321,6 +499,10 @@ final class ArchiveSession implements Closeable {
         metadataHardLinkSizes.add(identity.size);
     }
 
+    private MessageDigest newDigest() {
+        return options.contentIdentityMode() == ContentIdentityMode.FAST_VERIFIED ? new Murmur3Digest() : sha256();
+    }
+
     private static MessageDigest sha256() {
         try {
             return MessageDigest.getInstance("SHA-256");
@@ -351,6 +533,12 @@ final class ArchiveSession implements Closeable {
             return;
         }
         closed = true;
+        if (prefetcher != null) {
+            prefetcher.close();
+        }
+        if (fingerprintExecutor != null) {
+            fingerprintExecutor.shutdownNow();
+        }
         IOException failure = null;
         try {
             writer.close();
@@ -371,24 +559,52 @@ final class ArchiveSession implements Closeable {
         }
     }
 
+    /**
+     * Retains content beyond its source callback until the session closes. Entries of at most
+     * {@link #MEMORY_ENTRY_LIMIT} bytes are held in heap memory while the memory budget allows, and every other entry
+     * is appended to a {@link SegmentedSpool} or written to its own temporary file, optionally DEFLATE compressed.
+     */
     private static final class ContentSpool implements Closeable {
 
+        private static final long MEMORY_ENTRY_LIMIT = 1024 * 1024;
+
         private final Path temporaryDirectory;
         private final List<Path> contentFiles = new ArrayList<>();
+        private final SegmentedSpool segments;
+        private final DeflaterPool deflaters;
+        private long memoryAvailable;
 
-        private ContentSpool(Path temporaryDirectory) {
+        private ContentSpool(Path temporaryDirectory, long memoryBudget, boolean appendOnly, boolean compressed) {
             this.temporaryDirectory = temporaryDirectory;
+            segments = appendOnly ? new SegmentedSpool(temporaryDirectory) : null;
+            deflaters = compressed ? new DeflaterPool(Deflater.BEST_SPEED) : null;
+            memoryAvailable = memoryBudget;
         }
 
         private EntryContent stabilize(EntryContent entryContent) throws IOException {
+            long size = entryContent.size();
+            if (size >= 0 && size <= MEMORY_ENTRY_LIMIT && size <= memoryAvailable) {
+                memoryAvailable -= size;
+                return new MemoryContent(read(entryContent, (int) size));
+            }
+            if (segments != null) {
+                if (deflaters == null) {
+                    return segments.append(entryContent::transferTo);
+                }
+                long[] contentSize = new long[1];
+                EntryContent stored = segments.append(segment -> contentSize[0] = deflate(entryContent, segment));
+                return new CompressedContent(stored, contentSize[0]);
+            }
             Path content = Files.createTempFile(temporaryDirectory, ".provisio-entry-", ".tmp");
             boolean completed = false;
             try {
-                try (InputStream inputStream = entryContent.open();
-                        OutputStream outputStream = Files.newOutputStream(content)) {
-                    IOUtils.copyLarge(inputStream, outputStream);
+                long contentSize;
+                try (FileChannel channel = FileChannel.open(content, StandardOpenOption.WRITE)) {
+                    contentSize = deflaters == null ? entryContent.transferTo(channel) : deflate(entryContent, channel);
                 }
-                EntryContent stableContent = EntryContents.of(content);
+                EntryContent stableContent = deflaters == null
+                        ? EntryContents.of(content)
+                        : new CompressedContent(EntryContents.of(content), contentSize);
                 contentFiles.add(content);
                 completed = true;
                 return stableContent;
@@ -399,9 +615,50 @@ final class ArchiveSession implements Closeable {
             }
         }
 
+        /** Writes raw DEFLATE data for {@code entryContent} to {@code target} and returns the uncompressed size. */
+        private long deflate(EntryContent entryContent, WritableByteChannel target) throws IOException {
+            Deflater deflater = deflaters.acquire();
+            try {
+                OutputStream outputStream = Channels.newOutputStream(target);
+                DeflaterOutputStream deflated = new DeflaterOutputStream(outputStream, deflater, 64 * 1024);
+                long size = entryContent.transferTo(Channels.newChannel(deflated));
+                deflated.finish();
+                // Raw inflation may need one byte beyond the compressed data, as in ZIP readers
+                outputStream.write(0);
+                return size;
+            } finally {
+                deflaters.release(deflater);
+            }
+        }
+
+        /** Reads content that may turn out shorter than its declared size, like a spool file would. */
+        private static byte[] read(EntryContent entryContent, int size) throws IOException {
+            byte[] bytes = new byte[size];
+            try (InputStream inputStream = entryContent.open()) {
+                int count = IOUtils.read(inputStream, bytes);
+                if (count < size) {
+                    return Arrays.copyOf(bytes, count);
+                }
+                if (inputStream.read() != -1) {
+                    throw new IOException("Content is larger than its declared size of " + size + " bytes");
+                }
+            }
+            return bytes;
+        }
+
         @Override
         public void close() throws IOException {
             IOException failure = null;
+            if (deflaters != null) {
+                deflaters.close();
+            }
+            if (segments != null) {
+                try {
+                    segments.close();
+                } catch (IOException e) {
+                    failure = e;
+                }
+            }
             for (Path content : contentFiles) {
                 try {
                     Files.deleteIfExists(content);
@@ -419,16 +676,103 @@ final class ArchiveSession implements Closeable {
         }
     }
 
+    /** DEFLATE compressed spooled content, inflated each time it is read. */
+    private static final class CompressedContent implements EntryContent {
+
+        private final EntryContent stored;
+        private final long size;
+
+        private CompressedContent(EntryContent stored, long size) {
+            this.stored = stored;
+            this.size = size;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            Inflater inflater = new Inflater(true);
+            try {
+                return new InflaterInputStream(stored.open(), inflater, 64 * 1024) {
+                    private boolean closed;
+
+                    @Override
+                    public void close() throws IOException {
+                        if (closed) {
+                            return;
+                        }
+                        closed = true;
+                        try {
+                            super.close();
+                        } finally {
+                            inflater.end();
+                        }
+                    }
+                };
+            } catch (IOException | RuntimeException e) {
+                inflater.end();
+                throw e;
+            }
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+    }
+
+    /** Spooled content held in heap memory until the session closes. */
+    private static final class MemoryContent implements EntryContent {
+
+        private final byte[] bytes;
+
+        private MemoryContent(byte[] bytes) {
+            this.bytes = bytes;
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(bytes);
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(bytes);
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            return bytes.length;
+        }
+
+        @Override
+        public long size() {
+            return bytes.length;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+    }
+
     private static final class PendingEntry {
 
         private final OutputEntry entry;
         private final boolean hardLinkEligible;
         private final MetadataGroup metadataGroup;
+        private final String fingerprintKey;
+        // Started ahead of writing when fingerprinting runs on workers
+        private Future<ContentFingerprint> fingerprint;
 
-        private PendingEntry(OutputEntry entry, boolean hardLinkEligible, MetadataGroup metadataGroup) {
+        private PendingEntry(
+                OutputEntry entry, boolean hardLinkEligible, MetadataGroup metadataGroup, String fingerprintKey) {
             this.entry = entry;
             this.hardLinkEligible = hardLinkEligible;
             this.metadataGroup = metadataGroup;
+            this.fingerprintKey = fingerprintKey;
         }
     }
 
@@ -487,10 +831,13 @@ final class ArchiveSession implements Closeable {
 
         private final ContentFingerprint fingerprint;
         private final String entryName;
+        // Readable content of the target, when identity confirms digest matches byte for byte
+        private final EntryContent content;
 
-        private ContentTarget(ContentFingerprint fingerprint, String entryName) {
+        private ContentTarget(ContentFingerprint fingerprint, String entryName, EntryContent content) {
             this.fingerprint = fingerprint;
             this.entryName = entryName;
+            this.content = content;
         }
     }
 
@@ -505,16 +852,17 @@ final class ArchiveSession implements Closeable {
         }
     }
 
-    private static final class ContentFingerprint {
+    /** Size, CRC-32, and digest of content, also persisted by {@link FingerprintCache}. */
+    static final class ContentFingerprint {
 
-        private final long size;
-        private final long crc32;
-        private final byte[] sha256;
+        final long size;
+        final long crc32;
+        final byte[] digest;
 
-        private ContentFingerprint(long size, long crc32, byte[] sha256) {
+        ContentFingerprint(long size, long crc32, byte[] digest) {
             this.size = size;
             this.crc32 = crc32;
-            this.sha256 = sha256;
+            this.digest = digest;
         }
 
         private MetadataIdentity metadataIdentity() {
@@ -530,12 +878,12 @@ final class ArchiveSession implements Closeable {
                 return false;
             }
             ContentFingerprint that = (ContentFingerprint) other;
-            return size == that.size && Arrays.equals(sha256, that.sha256);
+            return size == that.size && Arrays.equals(digest, that.digest);
         }
 
         @Override
         public int hashCode() {
-            return 31 * Long.hashCode(size) + Arrays.hashCode(sha256);
+            return 31 * Long.hashCode(size) + Arrays.hashCode(digest);
         }
     }
 
@@ -543,14 +891,14 @@ final class ArchiveSession implements Closeable {
 
         private final String entryName;
         private final EntryContent delegate;
-        private final MessageDigest digest = sha256();
-        private final CRC32 crc32 = new CRC32();
-        private long size;
+        private final FingerprintSink sink;
+        private final byte[] single = new byte[1];
         private boolean opened;
 
-        private FingerprintingContent(String entryName, EntryContent delegate) {
+        private FingerprintingContent(String entryName, EntryContent delegate, FingerprintSink sink) {
             this.entryName = entryName;
             this.delegate = delegate;
+            this.sink = sink;
         }
 
         @Override
@@ -564,9 +912,8 @@ final class ArchiveSession implements Closeable {
                 public int read() throws IOException {
                     int value = super.read();
                     if (value != -1) {
-                        digest.update((byte) value);
-                        crc32.update(value);
-                        size++;
+                        single[0] = (byte) value;
+                        sink.update(single, 0, 1);
                     }
                     return value;
                 }
@@ -575,15 +922,41 @@ final class ArchiveSession implements Closeable {
                 public int read(byte[] bytes, int offset, int length) throws IOException {
                     int count = super.read(bytes, offset, length);
                     if (count != -1) {
-                        digest.update(bytes, offset, count);
-                        crc32.update(bytes, offset, count);
-                        size += count;
+                        sink.update(bytes, offset, count);
                     }
                     return count;
                 }
             };
         }
 
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (opened) {
+                throw new IOException("Fingerprinting content opened more than once for " + entryName);
+            }
+            opened = true;
+            return delegate.transferTo(new WritableByteChannel() {
+                @Override
+                public int write(ByteBuffer source) throws IOException {
+                    ByteBuffer written = source.duplicate();
+                    int count = target.write(source);
+                    ((Buffer) written).limit(written.position() + count);
+                    sink.update(written);
+                    return count;
+                }
+
+                @Override
+                public boolean isOpen() {
+                    return target.isOpen();
+                }
+
+                @Override
+                public void close() {
+                    // The target belongs to the archive writer
+                }
+            });
+        }
+
         @Override
         public long size() {
             return delegate.size();
@@ -591,10 +964,161 @@ final class ArchiveSession implements Closeable {
 
         private ContentFingerprint fingerprint() throws IOException {
             if (!opened) {
+                sink.cancel();
                 throw new IOException("Archive writer did not consume content for " + entryName);
             }
-            validateSize(entryName, delegate.size(), size);
+            ContentFingerprint fingerprint = sink.finish();
+            validateSize(entryName, delegate.size(), fingerprint.size);
+            return fingerprint;
+        }
+    }
+
+    /** Receives the bytes of one entry, in order, as the archive writer consumes them. */
+    private interface FingerprintSink {
+
+        void update(byte[] bytes, int offset, int length) throws IOException;
+
+        void update(ByteBuffer buffer) throws IOException;
+
+        ContentFingerprint finish() throws IOException;
+
+        void cancel();
+    }
+
+    /** Hashes written bytes on the writer thread. */
+    private static final class DigestFingerprintSink implements FingerprintSink {
+
+        private final MessageDigest digest;
+        private final CRC32 crc32 = new CRC32();
+        private long size;
+
+        private DigestFingerprintSink(MessageDigest digest) {
+            this.digest = digest;
+        }
+
+        @Override
+        public void update(byte[] bytes, int offset, int length) {
+            digest.update(bytes, offset, length);
+            crc32.update(bytes, offset, length);
+            size += length;
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) {
+            size += buffer.remaining();
+            crc32.update(buffer.duplicate());
+            digest.update(buffer);
+        }
+
+        @Override
+        public ContentFingerprint finish() {
             return new ContentFingerprint(size, crc32.getValue(), digest.digest());
         }
+
+        @Override
+        public void cancel() {}
+    }
+
+    /**
+     * Copies written bytes into pooled chunks that a fingerprint worker hashes in order. A bounded number of chunks is
+     * in flight, so a slow worker holds back the writer rather than buffering the entry.
+     */
+    private final class WorkerFingerprintSink implements FingerprintSink {
+
+        private final String entryName;
+        private final BlockingQueue<FingerprintChunk> chunks = new ArrayBlockingQueue<>(FINGERPRINT_CHUNKS_IN_FLIGHT);
+        private final Future<ContentFingerprint> fingerprint;
+        private byte[] chunk;
+        private int chunkLength;
+
+        private WorkerFingerprintSink(String entryName, MessageDigest digest) {
+            this.entryName = entryName;
+            fingerprint = fingerprintExecutor.submit(() -> digestChunks(digest));
+        }
+
+        @Override
+        public void update(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                int count = Math.min(length, nextChunk());
+                System.arraycopy(bytes, offset, chunk, chunkLength, count);
+                chunkLength += count;
+                offset += count;
+                length -= count;
+            }
+        }
+
+        @Override
+        public void update(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                int count = Math.min(buffer.remaining(), nextChunk());
+                buffer.get(chunk, chunkLength, count);
+                chunkLength += count;
+            }
+        }
+
+        @Override
+        public ContentFingerprint finish() throws IOException {
+            if (chunk != null) {
+                put(new FingerprintChunk(chunk, chunkLength));
+                chunk = null;
+            }
+            put(FingerprintChunk.END);
+            return await(entryName, fingerprint);
+        }
+
+        @Override
+        public void cancel() {
+            fingerprint.cancel(true);
+        }
+
+        /** Hands over a full chunk if necessary and returns the free space of the current chunk. */
+        private int nextChunk() throws IOException {
+            if (chunk != null && chunkLength == chunk.length) {
+                put(new FingerprintChunk(chunk, chunkLength));
+                chunk = null;
+            }
+            if (chunk == null) {
+                chunk = fingerprintChunks.acquire();
+                chunkLength = 0;
+            }
+            return chunk.length - chunkLength;
+        }
+
+        private void put(FingerprintChunk next) throws IOException {
+            try {
+                chunks.put(next);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while fingerprinting archive entry " + entryName, e);
+            }
+        }
+
+        private ContentFingerprint digestChunks(MessageDigest digest) throws InterruptedException {
+            CRC32 crc32 = new CRC32();
+            long size = 0;
+            while (true) {
+                FingerprintChunk next = chunks.take();
+                if (next == FingerprintChunk.END) {
+                    return new ContentFingerprint(size, crc32.getValue(), digest.digest());
+                }
+                digest.update(next.bytes, 0, next.length);
+                crc32.update(next.bytes, 0, next.length);
+                size += next.length;
+                fingerprintChunks.release(next.bytes);
+            }
+        }
+    }
+
+    private static final class FingerprintChunk {
+
+        private static final FingerprintChunk END = new FingerprintChunk(null, 0);
+
+        private final byte[] bytes;
+        private final int length;
+
+        private FingerprintChunk(byte[] bytes, int length) {
+            this.bytes = bytes;
+            this.length = length;
+        }
     }
 }
@@ -18,6 +18,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
 
 public final class Archiver {
 
@@ -93,6 +94,23 @@ public final class Archiver {
         List<String> hardLinkExcludes = new ArrayList<>();
         int gzipCompressionThreads = GzipCompressionOptions.DEFAULT_THREADS;
         int gzipCompressionLevel = GzipCompressionOptions.DEFAULT_LEVEL;
+        boolean gzipPresetDictionary;
+        int gzipCompressionChunkSize = GzipCompressionOptions.DEFAULT_CHUNK_SIZE;
+        long gzipExpectedSize = -1;
+        boolean gzipMemberIndex;
+        ExecutorService compressionExecutor;
+        int zipCompressionThreads = ZipCompressionOptions.DEFAULT_THREADS;
+        boolean recompressZipEntries;
+        List<String> zipStoredEntries = new ArrayList<>();
+        boolean zipStoreIncompressibleEntries;
+        int contentPrefetchThreads;
+        long contentPrefetchBytes = ContentPrefetcher.DEFAULT_BUDGET;
+        int fingerprintThreads = 1;
+        Path fingerprintCacheFile;
+        int fingerprintCacheEntries;
+        long spoolMemoryBytes;
+        boolean appendOnlySpool;
+        boolean compressedSpool;
 
         /** Selects preserved or normalized archive metadata independently of entry ordering. */
         public ArchiverBuilder reproducibility(ReproducibilityPolicy reproducibilityPolicy) {
@@ -148,6 +166,224 @@ public final class Archiver {
             return this;
         }
 
+        /**
+         * Writes tar.gz output as a single gzip member whose chunks are primed with the preceding 32 KiB of content,
+         * recovering most of the ratio lost to independent members while keeping parallel compression.
+         *
+         * @param presetDictionary {@code true} to join dictionary-primed chunks into one member
+         */
+        public ArchiverBuilder gzipPresetDictionary(boolean presetDictionary) {
+            gzipPresetDictionary = presetDictionary;
+            return this;
+        }
+
+        /**
+         * Sets a fixed gzip compression chunk size between 32 KiB and 64 MiB, replacing any automatic sizing. The
+         * default is 1 MiB.
+         *
+         * @param chunkSize uncompressed bytes compressed by one worker task
+         */
+        public ArchiverBuilder gzipCompressionChunkSize(int chunkSize) {
+            new GzipCompressionOptions(
+                    gzipCompressionThreads, gzipCompressionLevel, gzipPresetDictionary, chunkSize, null, false);
+            gzipCompressionChunkSize = chunkSize;
+            gzipExpectedSize = -1;
+            return this;
+        }
+
+        /**
+         * Derives the gzip compression chunk size from the expected uncompressed tar size and the configured worker
+         * count, replacing any fixed chunk size. Output is deterministic for the same hint and worker count.
+         *
+         * @param expectedSize expected uncompressed tar size in bytes
+         */
+        public ArchiverBuilder gzipAutomaticChunkSize(long expectedSize) {
+            GzipCompressionOptions.automaticChunkSize(expectedSize, gzipCompressionThreads);
+            gzipExpectedSize = expectedSize;
+            return this;
+        }
+
+        /**
+         * Appends a seekable index to tar.gz output, recording the compressed offset of every gzip member and the
+         * uncompressed header offset of every tar entry, so a single entry can be read without inflating the content
+         * before it. The index is carried in empty gzip members that standard gzip tools skip. It cannot be combined
+         * with {@link #gzipPresetDictionary(boolean)}, and tar records are written unblocked so that entry offsets are
+         * exact.
+         *
+         * @param memberIndex {@code true} to append a member index
+         */
+        public ArchiverBuilder gzipMemberIndex(boolean memberIndex) {
+            gzipMemberIndex = memberIndex;
+            return this;
+        }
+
+        /**
+         * Runs parallel compression work on a caller-owned executor shared by every archive operation of this archiver, so
+         * total compression parallelism is capped by that executor across concurrent operations. Each operation still
+         * keeps at most twice {@link #gzipCompressionThreads(int)} chunks pending, so one large archive cannot crowd
+         * out the others. The executor is never shut down by the archiver.
+         *
+         * @param executor shared compression executor
+         */
+        public ArchiverBuilder compressionExecutor(ExecutorService executor) {
+            compressionExecutor = requireNonNull(executor);
+            return this;
+        }
+
+        /**
+         * Sets the number of ZIP entry compression workers. The default of one streams every entry sequentially; more
+         * workers deflate entries of up to 1 MiB concurrently and write them in order, with at most twice the worker
+         * count pending.
+         *
+         * @param threads ZIP compression workers
+         */
+        public ArchiverBuilder zipCompressionThreads(int threads) {
+            new ZipCompressionOptions(threads);
+            zipCompressionThreads = threads;
+            return this;
+        }
+
+        /**
+         * Forces entries read from ZIP sources to be inflated and deflated again. By default, STORED and DEFLATED
+         * entries are copied into ZIP output as raw compressed bytes with their original CRC and sizes.
+         *
+         * @param recompress {@code true} to recompress ZIP source entries
+         */
+        public ArchiverBuilder recompressZipEntries(boolean recompress) {
+            recompressZipEntries = recompress;
+            return this;
+        }
+
+        /**
+         * Writes ZIP entries whose names match any of the glob patterns STORED instead of DEFLATED, for content such as
+         * nested archives and images that is already compressed.
+         *
+         * @param patterns entry name patterns, matched like hard-link includes, such as {@code *.jar}
+         */
+        public ArchiverBuilder zipStoredEntries(String... patterns) {
+            return zipStoredEntries(Collections.unmodifiableList(new ArrayList<>(Arrays.asList(patterns))));
+        }
+
+        public ArchiverBuilder zipStoredEntries(Iterable<String> patterns) {
+            patterns.forEach(zipStoredEntries::add);
+            return this;
+        }
+
+        /**
+         * Writes ZIP entries STORED when DEFLATE does not shrink them, judged from the whole entry when it is
+         * compressed in memory and from its first 64 KiB otherwise.
+         *
+         * @param storeIncompressible {@code true} to store incompressible entries
+         */
+        public ArchiverBuilder zipStoreIncompressibleEntries(boolean storeIncompressible) {
+            zipStoreIncompressibleEntries = storeIncompressible;
+            return this;
+        }
+
+        /**
+         * Reads upcoming file-backed source entries, such as those of directory and file sources, into pooled memory on
+         * {@code threads} workers while earlier entries are compressed and written. Entries are still written in source
+         * order, and other sources keep reading content inside their callbacks. The default of zero disables
+         * prefetching.
+         *
+         * @param threads content prefetch workers, from 0 through 256
+         */
+        public ArchiverBuilder contentPrefetchThreads(int threads) {
+            ContentPrefetcher.validate(threads, contentPrefetchBytes);
+            contentPrefetchThreads = threads;
+            return this;
+        }
+
+        /**
+         * Bounds the bytes of prefetched content held in memory. Larger files are not prefetched. The default is 16 MiB.
+         *
+         * @param bytes prefetch budget of at least 64 KiB
+         */
+        public ArchiverBuilder contentPrefetchBytes(long bytes) {
+            ContentPrefetcher.validate(contentPrefetchThreads, bytes);
+            contentPrefetchBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Computes the fingerprints of {@link ContentIdentityMode#VERIFIED} and
+         * {@link ContentIdentityMode#FAST_VERIFIED} hard-link candidates on {@code threads} workers. With
+         * {@link EntryOrder#NAME}, retained entries are fingerprinted ahead of the entry being written. With
+         * {@link EntryOrder#SOURCE}, repeatable content is hashed from a second read while it is written. The default of
+         * one fingerprints on the assembly thread. Output does not depend on the worker count.
+         *
+         * @param threads fingerprint workers, from 1 through 256
+         */
+        public ArchiverBuilder fingerprintThreads(int threads) {
+            if (threads < 1 || threads > 256) {
+                throw new IllegalArgumentException("fingerprint threads must be between 1 and 256");
+            }
+            fingerprintThreads = threads;
+            return this;
+        }
+
+        /**
+         * Persists hard-link candidate fingerprints in {@code file} so later archive operations do not hash unchanged
+         * inputs again. File-backed content is keyed by its path, size, modification time, and file key, and ZIP entries
+         * by the attributes of their archive, entry name, CRC-32, and size. Other content is always hashed. The least
+         * recently used fingerprints beyond {@code maximumEntries} are evicted, and the file is rewritten once an archive
+         * is finished.
+         *
+         * <p>A file rewritten in place with the same size and modification time keeps its stale fingerprint, so the
+         * cache suits inputs such as a local Maven repository whose files are replaced rather than edited.
+         *
+         * @param file cache file, created when absent
+         * @param maximumEntries maximum number of cached fingerprints, at least 1
+         */
+        public ArchiverBuilder fingerprintCache(Path file, int maximumEntries) {
+            FingerprintCache.validate(maximumEntries);
+            fingerprintCacheFile = requireNonNull(file);
+            fingerprintCacheEntries = maximumEntries;
+            return this;
+        }
+
+        /**
+         * Holds retained entry content, such as every file entry of {@link EntryOrder#NAME} output, in heap memory up to
+         * {@code bytes} in total instead of one temporary file per entry. Only entries of at most 1 MiB are held in
+         * memory, and entries that no longer fit the budget are spooled to temporary files as before. The default of
+         * zero spools every entry to a file.
+         *
+         * @param bytes memory budget for retained content, at least 0
+         */
+        public ArchiverBuilder spoolMemory(long bytes) {
+            if (bytes < 0) {
+                throw new IllegalArgumentException("spool memory must not be negative");
+            }
+            spoolMemoryBytes = bytes;
+            return this;
+        }
+
+        /**
+         * Appends retained entry content that is not held in memory to a temporary file, starting another every 1 GiB,
+         * and reads each entry back from its offset. This replaces one temporary file per entry, and its creation and
+         * deletion, with a few files for archives of many entries. Disk use is the same, and the files are deleted when
+         * the archive operation ends.
+         *
+         * @param appendOnly {@code true} to spool into shared append-only files
+         */
+        public ArchiverBuilder appendOnlySpool(boolean appendOnly) {
+            appendOnlySpool = appendOnly;
+            return this;
+        }
+
+        /**
+         * Compresses retained entry content written to temporary files with DEFLATE at its fastest level, and inflates
+         * it each time it is read, such as when the entry is written to the archive. This trades compression CPU for
+         * less temporary disk space and write bandwidth, most for {@link EntryOrder#NAME} output. Content held in memory
+         * by {@link #spoolMemory(long)} is not compressed.
+         *
+         * @param compressed {@code true} to compress spooled content
+         */
+        public ArchiverBuilder compressedSpool(boolean compressed) {
+            compressedSpool = compressed;
+            return this;
+        }
+
         public ArchiverBuilder hardLinkIncludes(String... hardLinkIncludes) {
             return hardLinkIncludes(Collections.unmodifiableList(new ArrayList<>(Arrays.asList(hardLinkIncludes))));
         }
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bounded set of recycled fixed-size byte arrays.
+ *
+ * <p>Arrays may be acquired and released on different threads. A release beyond the retained capacity, or of an array
+ * with a different length, is left to the garbage collector rather than growing the arena.
+ */
+final class BufferArena {
+
+    private final int bufferSize;
+    private final BlockingQueue<byte[]> buffers;
+    private final AtomicInteger allocated = new AtomicInteger();
+
+    BufferArena(int bufferSize, int capacity) {
+        if (bufferSize < 0) {
+            throw new IllegalArgumentException("buffer size must not be negative");
+        }
+        this.bufferSize = bufferSize;
+        buffers = new ArrayBlockingQueue<>(Math.max(1, capacity));
+    }
+
+    byte[] acquire() {
+        byte[] buffer = buffers.poll();
+        if (buffer == null) {
+            allocated.incrementAndGet();
+            buffer = new byte[bufferSize];
+        }
+        return buffer;
+    }
+
+    void release(byte[] buffer) {
+        if (buffer != null && buffer.length == bufferSize) {
+            buffers.offer(buffer);
+        }
+    }
+
+    int bufferSize() {
+        return bufferSize;
+    }
+
+    int allocated() {
+        return allocated.get();
+    }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/** Daemon worker threads for a private per-operation compression or extraction pool. */
+final class CompressionThreadFactory implements ThreadFactory {
+
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+    private final AtomicInteger threadIds = new AtomicInteger();
+    private final int poolId = POOL_IDS.incrementAndGet();
+    private final String prefix;
+
+    CompressionThreadFactory(String prefix) {
+        this.prefix = prefix;
+    }
+
+    @Override
+    public Thread newThread(Runnable runnable) {
+        Thread thread = new Thread(runnable, prefix + "-" + poolId + "-" + threadIds.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+    }
+}
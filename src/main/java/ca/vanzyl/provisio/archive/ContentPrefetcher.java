@@ -0,0 +1,246 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import ca.vanzyl.provisio.archive.source.DurableContentSource;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Reads upcoming file-backed source entries into pooled buffers on worker threads while earlier entries are written.
+ *
+ * <p>Entries are only held back for a {@link DurableContentSource}, whose entries and file content outlive the source
+ * callback. Entries without content and entries with file content are held back; any other file entry first releases
+ * every held entry and is then handled inside its own callback. Entries are always handled in source order, and the
+ * bytes of prefetched content are bounded by a budget.
+ */
+final class ContentPrefetcher implements Closeable {
+
+    static final long DEFAULT_BUDGET = 16 * 1024 * 1024;
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+    // Entries held back per worker, including entries that are not prefetched
+    private static final int ENTRIES_PER_THREAD = 8;
+
+    private final long budget;
+    private final int maximumPending;
+    private final ExecutorService executor;
+    private final BufferArena buffers;
+    private final Deque<PendingEntry> pending = new ArrayDeque<>();
+    private long reserved;
+
+    ContentPrefetcher(int threads, long budget) {
+        validate(threads, budget);
+        this.budget = budget;
+        maximumPending = threads * ENTRIES_PER_THREAD;
+        executor = Executors.newFixedThreadPool(threads, new CompressionThreadFactory("provisio-prefetch"));
+        buffers = new BufferArena(CHUNK_SIZE, (int) Math.min(Integer.MAX_VALUE, budget / CHUNK_SIZE + threads));
+    }
+
+    static void validate(int threads, long budget) {
+        if (threads < 0 || threads > 256) {
+            throw new IllegalArgumentException("content prefetch threads must be between 0 and 256");
+        }
+        if (budget < CHUNK_SIZE) {
+            throw new IllegalArgumentException("content prefetch budget must be at least " + CHUNK_SIZE + " bytes");
+        }
+    }
+
+    /** Holds back {@code entry} when its content may be read ahead, handling earlier entries as the window fills. */
+    void accept(SourceEntry entry, Source.EntryConsumer consumer) throws IOException {
+        if (entry.getType() == EntryType.FILE && !(entry.getContent() instanceof EntryContents.FileContent)) {
+            drain(consumer);
+            consumer.accept(entry);
+            return;
+        }
+        long size = entry.getType() == EntryType.FILE ? entry.getContent().size() : 0;
+        if (size > 0 && size <= budget) {
+            while (reserved + size > budget) {
+                handleNext(consumer);
+            }
+            reserved += size;
+            EntryContents.FileContent content = (EntryContents.FileContent) entry.getContent();
+            pending.addLast(new PendingEntry(entry, size, executor.submit(() -> read(content))));
+        } else {
+            pending.addLast(new PendingEntry(entry, 0, null));
+        }
+        while (pending.size() > maximumPending) {
+            handleNext(consumer);
+        }
+    }
+
+    /** Handles every held entry, such as when the source traversal ends. */
+    void drain(Source.EntryConsumer consumer) throws IOException {
+        while (!pending.isEmpty()) {
+            handleNext(consumer);
+        }
+    }
+
+    private void handleNext(Source.EntryConsumer consumer) throws IOException {
+        PendingEntry next = pending.removeFirst();
+        PrefetchedContent content = null;
+        try {
+            content = await(next);
+            consumer.accept(content == null ? next.entry : next.entry.withContent(content));
+        } finally {
+            reserved -= next.reserved;
+            if (content != null) {
+                content.release();
+            }
+        }
+    }
+
+    private static PrefetchedContent await(PendingEntry entry) throws IOException {
+        if (entry.future == null) {
+            return null;
+        }
+        try {
+            return entry.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while prefetching archive entry " + entry.entry.getName(), e);
+        } catch (ExecutionException e) {
+            // The writer reads the file itself and reports the failure as it would without prefetching
+            return null;
+        }
+    }
+
+    /** Reads the file, or returns {@code null} when it no longer has its declared size. */
+    private PrefetchedContent read(EntryContents.FileContent content) throws IOException {
+        List<byte[]> chunks = new ArrayList<>();
+        long remaining = content.size();
+        boolean completed = false;
+        try (InputStream inputStream = content.open()) {
+            while (remaining > 0) {
+                byte[] chunk = buffers.acquire();
+                chunks.add(chunk);
+                int length = (int) Math.min(chunk.length, remaining);
+                if (IOUtils.read(inputStream, chunk, 0, length) != length) {
+                    return null;
+                }
+                remaining -= length;
+            }
+            if (inputStream.read() != -1) {
+                return null;
+            }
+            completed = true;
+            return new PrefetchedContent(content, chunks);
+        } finally {
+            if (!completed) {
+                chunks.forEach(buffers::release);
+            }
+        }
+    }
+
+    /** Returns the file content that {@code content} was read ahead from, or {@code null} if it was not read ahead. */
+    static EntryContents.FileContent source(EntryContent content) {
+        return content instanceof PrefetchedContent ? ((PrefetchedContent) content).source : null;
+    }
+
+    @Override
+    public void close() {
+        for (PendingEntry entry : pending) {
+            if (entry.future != null) {
+                entry.future.cancel(true);
+            }
+        }
+        pending.clear();
+        executor.shutdownNow();
+    }
+
+    private static final class PendingEntry {
+
+        private final SourceEntry entry;
+        private final long reserved;
+        private final Future<PrefetchedContent> future;
+
+        private PendingEntry(SourceEntry entry, long reserved, Future<PrefetchedContent> future) {
+            this.entry = entry;
+            this.reserved = reserved;
+            this.future = future;
+        }
+    }
+
+    /** File content already in memory, valid until the entry has been handled. */
+    private final class PrefetchedContent implements EntryContent {
+
+        private final EntryContents.FileContent source;
+        private final List<byte[]> chunks;
+        private final long size;
+        private boolean released;
+
+        private PrefetchedContent(EntryContents.FileContent source, List<byte[]> chunks) {
+            this.source = source;
+            this.chunks = chunks;
+            size = source.size();
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            requireActive();
+            List<InputStream> streams = new ArrayList<>(chunks.size());
+            long remaining = size;
+            for (byte[] chunk : chunks) {
+                int length = (int) Math.min(chunk.length, remaining);
+                streams.add(new ByteArrayInputStream(chunk, 0, length));
+                remaining -= length;
+            }
+            return new SequenceInputStream(Collections.enumeration(streams));
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            requireActive();
+            long remaining = size;
+            for (byte[] chunk : chunks) {
+                ByteBuffer buffer = ByteBuffer.wrap(chunk, 0, (int) Math.min(chunk.length, remaining));
+                remaining -= buffer.remaining();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+            }
+            return size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+
+        private void requireActive() throws IOException {
+            if (released) {
+                throw new IOException("Prefetched content is no longer available");
+            }
+        }
+
+        private void release() {
+            released = true;
+            chunks.forEach(buffers::release);
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.zip.Deflater;
+
+/**
+ * Reusable raw DEFLATE compressors shared by the workers of one compression stream.
+ *
+ * <p>A released compressor is reset rather than ended, so steady-state compression does not repeat native zlib
+ * initialization. At most one idle compressor is retained per concurrently running worker. Compressors still in use
+ * when the pool closes are ended as they are released.
+ */
+final class DeflaterPool implements AutoCloseable {
+
+    private final int level;
+    private final Deque<Deflater> idle = new ArrayDeque<>();
+    private int created;
+    private boolean closed;
+
+    DeflaterPool(int level) {
+        this.level = level;
+    }
+
+    synchronized Deflater acquire() {
+        if (closed) {
+            throw new IllegalStateException("Deflater pool is closed");
+        }
+        Deflater deflater = idle.pollFirst();
+        if (deflater == null) {
+            deflater = new Deflater(level, true);
+            created++;
+        }
+        return deflater;
+    }
+
+    synchronized void release(Deflater deflater) {
+        if (closed) {
+            deflater.end();
+            return;
+        }
+        deflater.reset();
+        idle.addFirst(deflater);
+    }
+
+    synchronized int created() {
+        return created;
+    }
+
+    @Override
+    public synchronized void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (Deflater deflater : idle) {
+            deflater.end();
+        }
+        idle.clear();
+    }
+}
@@ -9,6 +9,9 @@ package ca.vanzyl.provisio.archive;
 
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import org.apache.commons.io.IOUtils;
 
 /** Content associated with a source entry. */
 public interface EntryContent {
@@ -21,6 +24,19 @@ public interface EntryContent {
      */
     InputStream open() throws IOException;
 
+    /**
+     * Writes the content to {@code target} while its {@link Source.EntryConsumer} callback is active. This is one use of
+     * the content, like {@link #open()}, and leaves {@code target} open. File-backed content moves bytes through its
+     * file channel rather than a stream buffer.
+     *
+     * @return the number of bytes written
+     */
+    default long transferTo(WritableByteChannel target) throws IOException {
+        try (InputStream inputStream = open()) {
+            return IOUtils.copyLarge(inputStream, Channels.newOutputStream(target));
+        }
+    }
+
     /** Returns the uncompressed content size. */
     long size();
 
@@ -12,8 +12,11 @@ import static java.util.Objects.requireNonNull;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Arrays;
 import java.util.zip.CRC32;
 
@@ -29,50 +32,110 @@ public final class EntryContents {
     }
 
     public static EntryContent of(byte[] bytes) {
-        byte[] content = Arrays.copyOf(requireNonNull(bytes), bytes.length);
-        CRC32 crc32 = new CRC32();
-        crc32.update(content);
-        return new EntryContent() {
-            @Override
-            public InputStream open() {
-                return new ByteArrayInputStream(content);
-            }
+        return new BytesContent(Arrays.copyOf(requireNonNull(bytes), bytes.length));
+    }
 
-            @Override
-            public long size() {
-                return content.length;
-            }
+    public static EntryContent of(Path file) throws IOException {
+        Path content = requireNonNull(file);
+        return new FileContent(content, Files.size(content));
+    }
 
-            @Override
-            public long crc32() {
-                return crc32.getValue();
-            }
+    /** Returns content for {@code file} whose size the caller has already read, such as while walking a directory. */
+    public static EntryContent of(Path file, long size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("content size must not be negative");
+        }
+        return new FileContent(requireNonNull(file), size);
+    }
 
-            @Override
-            public boolean isRepeatable() {
-                return true;
-            }
-        };
+    /** A private copy of caller bytes, which stays readable after its source callback. */
+    static final class BytesContent implements EntryContent {
+
+        private final byte[] content;
+        private final long crc32;
+
+        private BytesContent(byte[] content) {
+            this.content = content;
+            CRC32 checksum = new CRC32();
+            checksum.update(content);
+            crc32 = checksum.getValue();
+        }
+
+        @Override
+        public InputStream open() {
+            return new ByteArrayInputStream(content);
+        }
+
+        @Override
+        public long size() {
+            return content.length;
+        }
+
+        @Override
+        public long crc32() {
+            return crc32;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
     }
 
-    public static EntryContent of(Path file) throws IOException {
-        Path content = requireNonNull(file);
-        long size = Files.size(content);
-        return new EntryContent() {
-            @Override
-            public InputStream open() throws IOException {
-                return Files.newInputStream(content);
-            }
+    static final class FileContent implements EntryContent {
 
-            @Override
-            public long size() {
-                return size;
-            }
+        private final Path file;
+        private final long size;
 
-            @Override
-            public boolean isRepeatable() {
-                return true;
+        private FileContent(Path file, long size) {
+            this.file = file;
+            this.size = size;
+        }
+
+        Path file() {
+            return file;
+        }
+
+        @Override
+        public InputStream open() throws IOException {
+            return Files.newInputStream(file);
+        }
+
+        /**
+         * Copies into file channels in the kernel where the platform supports it. Other targets, such as archive
+         * streams, get the plain stream copy.
+         */
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            if (!(target instanceof FileChannel)) {
+                return EntryContent.super.transferTo(target);
             }
-        };
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long length = channel.size();
+                if (length != size) {
+                    throw new IOException(
+                            "Content size of " + file + " changed from " + size + " to " + length + " bytes");
+                }
+                long position = 0;
+                while (position < length) {
+                    long transferred = channel.transferTo(position, length - position, target);
+                    if (transferred <= 0) {
+                        throw new IOException("Content of " + file + " ended after " + position + " bytes");
+                    }
+                    position += transferred;
+                }
+                return position;
+            }
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
     }
 }
@@ -0,0 +1,265 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Records what a previous extraction wrote into an output directory, so the next extraction of the same archive can
+ * skip unchanged regular files and delete outputs whose entries were removed.
+ *
+ * <p>Each record holds the archive metadata of an entry (size, CRC-32, mode, and time) and the size and modification
+ * time of the written file. A file is unchanged when the size, mode, and CRC-32 match and the file on disk still has
+ * the recorded size and time, so the file is never read. Formats without a stored CRC-32, like tar, have entry times
+ * that may be normalized, so their CRC-32 is computed from the entry content instead.
+ */
+final class ExtractionManifest {
+
+    static final String FILE_NAME = ".provisio-extraction";
+
+    private static final String HEADER = "# provisio extraction manifest 2";
+
+    private final Map<String, Record> previous;
+    private final Map<String, Record> current = new ConcurrentHashMap<>();
+
+    private ExtractionManifest(Map<String, Record> previous) {
+        this.previous = previous;
+    }
+
+    /** Reads the manifest of {@code outputDirectory}, or starts an empty one if it is absent or unrecognized. */
+    static ExtractionManifest read(Path outputDirectory) throws IOException {
+        Map<String, Record> records = new TreeMap<>();
+        Path file = outputDirectory.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file, LinkOption.NOFOLLOW_LINKS)) {
+            return new ExtractionManifest(records);
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return new ExtractionManifest(new TreeMap<>());
+            }
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 8);
+                if (fields.length != 8) {
+                    throw new IOException("Corrupt extraction manifest " + file);
+                }
+                try {
+                    records.put(
+                            unescape(fields[7]),
+                            new Record(
+                                    EntryType.valueOf(fields[0]),
+                                    Long.parseLong(fields[1]),
+                                    Long.parseLong(fields[2]),
+                                    Integer.parseInt(fields[3]),
+                                    Long.parseLong(fields[4]),
+                                    Long.parseLong(fields[5]),
+                                    Long.parseLong(fields[6])));
+                } catch (IllegalArgumentException e) {
+                    throw new IOException("Corrupt extraction manifest " + file, e);
+                }
+            }
+        }
+        return new ExtractionManifest(records);
+    }
+
+    /**
+     * Returns whether the regular file for {@code metadata} at {@code path} was written by the previous extraction from
+     * content with the same CRC-32 and has not changed on disk since. An unchanged file is carried into this manifest.
+     */
+    boolean isUnchanged(String path, Record metadata, Path outputFile) throws IOException {
+        Record record = candidate(path, metadata, outputFile);
+        if (record == null || metadata.crc32 == -1 || metadata.crc32 != record.crc32) {
+            return false;
+        }
+        current.put(path, record);
+        return true;
+    }
+
+    /**
+     * Returns whether {@code metadata} has no CRC-32 but the file at {@code path} could otherwise be skipped, so
+     * computing the CRC-32 of the entry content may avoid writing the file.
+     */
+    boolean needsCrc32(String path, Record metadata, Path outputFile) throws IOException {
+        return metadata.crc32 == -1 && candidate(path, metadata, outputFile) != null;
+    }
+
+    /** Returns the previous record for {@code path} if everything but the content still matches. */
+    private Record candidate(String path, Record metadata, Path outputFile) throws IOException {
+        Record record = previous.get(path);
+        if (record == null
+                || record.type != EntryType.FILE
+                || record.crc32 == -1
+                || metadata.size < 0
+                || metadata.size != record.size
+                || metadata.mode != record.mode) {
+            return null;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(outputFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile()
+                || attributes.size() != record.outputSize
+                || attributes.lastModifiedTime().toMillis() != record.outputTime) {
+            return null;
+        }
+        return record;
+    }
+
+    /** Captures the archive metadata of {@code entry} while its source callback is active. */
+    static Record describe(SourceEntry entry) {
+        long size = -1;
+        long crc32 = -1;
+        if (entry.getType() == EntryType.FILE) {
+            size = entry.getContent().size();
+            crc32 = entry.getContent().crc32();
+        }
+        return new Record(entry.getType(), size, crc32, entry.getFileMode(), entry.getTime(), -1, -1);
+    }
+
+    /**
+     * Records a regular file just written for an entry described by {@link #describe(SourceEntry)}, with the CRC-32
+     * computed from its content when the archive does not store one.
+     */
+    void recordFile(String path, Record metadata, Path outputFile) throws IOException {
+        BasicFileAttributes attributes =
+                Files.readAttributes(outputFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        current.put(
+                path,
+                new Record(
+                        EntryType.FILE,
+                        metadata.size,
+                        metadata.crc32,
+                        metadata.mode,
+                        metadata.time,
+                        attributes.size(),
+                        attributes.lastModifiedTime().toMillis()));
+    }
+
+    /** Records a directory or link, which is never skipped but is deleted once its entry is removed. */
+    void record(String path, SourceEntry entry) {
+        current.put(path, describe(entry));
+    }
+
+    /**
+     * Deletes outputs recorded by the previous extraction that this extraction did not produce. Directories are only
+     * deleted once empty, deepest first.
+     */
+    void deleteRemoved(Path outputDirectory) throws IOException {
+        List<Path> directories = new ArrayList<>();
+        for (Map.Entry<String, Record> entry : previous.entrySet()) {
+            if (current.containsKey(entry.getKey())) {
+                continue;
+            }
+            Path output = outputDirectory.resolve(entry.getKey()).normalize();
+            if (!output.startsWith(outputDirectory) || output.equals(outputDirectory)) {
+                continue;
+            }
+            if (entry.getValue().type == EntryType.DIRECTORY) {
+                directories.add(output);
+            } else if (!Files.isDirectory(output, LinkOption.NOFOLLOW_LINKS)) {
+                Files.deleteIfExists(output);
+            }
+        }
+        directories.sort(Comparator.comparingInt(Path::getNameCount).reversed());
+        for (Path directory : directories) {
+            try {
+                Files.deleteIfExists(directory);
+            } catch (DirectoryNotEmptyException e) {
+                // Still holds current entries or files that were not extracted
+            }
+        }
+    }
+
+    /** Replaces the manifest of {@code outputDirectory} with the outputs of this extraction. */
+    void write(Path outputDirectory) throws IOException {
+        Path file = outputDirectory.resolve(FILE_NAME);
+        Path temporary = Files.createTempFile(outputDirectory, FILE_NAME, ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, Record> entry : new TreeMap<>(current).entrySet()) {
+                    Record record = entry.getValue();
+                    writer.write(record.type + "\t" + record.size + "\t" + record.crc32 + "\t" + record.mode + "\t"
+                            + record.time + "\t" + record.outputSize + "\t" + record.outputTime + "\t"
+                            + escape(entry.getKey()));
+                    writer.write('\n');
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+
+    static String escape(String path) {
+        return path.replace("\\", "\\\\").replace("\n", "\\n").replace("\r", "\\r");
+    }
+
+    static String unescape(String path) {
+        StringBuilder unescaped = new StringBuilder(path.length());
+        for (int index = 0; index < path.length(); index++) {
+            char character = path.charAt(index);
+            if (character == '\\' && index + 1 < path.length()) {
+                char escaped = path.charAt(++index);
+                unescaped.append(escaped == 'n' ? '\n' : escaped == 'r' ? '\r' : escaped);
+            } else {
+                unescaped.append(character);
+            }
+        }
+        return unescaped.toString();
+    }
+
+    static final class Record {
+
+        private final EntryType type;
+        private final long size;
+        private final long crc32;
+        private final int mode;
+        private final long time;
+        private final long outputSize;
+        private final long outputTime;
+
+        private Record(EntryType type, long size, long crc32, int mode, long time, long outputSize, long outputTime) {
+            this.type = type;
+            this.size = size;
+            this.crc32 = crc32;
+            this.mode = mode;
+            this.time = time;
+            this.outputSize = outputSize;
+            this.outputTime = outputTime;
+        }
+
+        long crc32() {
+            return crc32;
+        }
+
+        Record withCrc32(long crc32) {
+            return new Record(type, size, crc32, mode, time, outputSize, outputTime);
+        }
+    }
+}
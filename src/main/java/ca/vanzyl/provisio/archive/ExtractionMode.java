@@ -0,0 +1,32 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+/** Selects how extracted regular files are written over the existing content of the output directory. */
+public enum ExtractionMode {
+    /**
+     * Compare new content with any existing file and rewrite it, and its permissions, only when it differs. This reads
+     * every existing file once.
+     */
+    COMPARE,
+
+    /** Write every file directly, replacing existing content without reading it. */
+    OVERWRITE,
+
+    /**
+     * Extract into an absent or empty output directory, creating every file directly. Extraction fails if the output
+     * directory has content or an output file already exists.
+     */
+    FRESH,
+
+    /**
+     * Skip files whose size and modification time already match the entry, without reading them, and write the rest
+     * directly with the entry modification time. Entries without a known size or time are always written.
+     */
+    INCREMENTAL
+}
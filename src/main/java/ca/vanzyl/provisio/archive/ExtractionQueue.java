@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Runs extraction filesystem writes on a bounded pool of workers and reports completed entries in archive order.
+ *
+ * <p>With one thread, every write runs immediately on the calling thread. Otherwise at most twice the worker count is
+ * pending, and each completion callback runs on the calling thread once its own write and every earlier write have
+ * finished, even if the write failed.
+ */
+final class ExtractionQueue implements Closeable {
+
+    @FunctionalInterface
+    interface Action {
+        void run() throws IOException;
+    }
+
+    private static final Future<Void> DONE = CompletableFuture.completedFuture(null);
+
+    private final ExecutorService executor;
+    private final int maximumPending;
+    private final Deque<PendingWrite> pending = new ArrayDeque<>();
+
+    ExtractionQueue(int threads) {
+        if (threads < 1 || threads > 256) {
+            throw new IllegalArgumentException("extraction threads must be between 1 and 256");
+        }
+        executor = threads == 1
+                ? null
+                : Executors.newFixedThreadPool(threads, new CompressionThreadFactory("provisio-extract"));
+        maximumPending = threads * 2;
+    }
+
+    boolean isParallel() {
+        return executor != null;
+    }
+
+    /** Runs {@code write} on a worker, then {@code completion} in order on the calling thread. */
+    void submit(Action write, Action completion) throws IOException {
+        if (executor == null) {
+            try {
+                write.run();
+            } finally {
+                completion.run();
+            }
+            return;
+        }
+        pending.addLast(new PendingWrite(
+                executor.submit(() -> {
+                    write.run();
+                    return null;
+                }),
+                completion));
+        drainTo(maximumPending);
+    }
+
+    /** Runs {@code completion} in order on the calling thread for an entry already written by the caller. */
+    void completed(Action completion) throws IOException {
+        if (pending.isEmpty()) {
+            completion.run();
+        } else {
+            pending.addLast(new PendingWrite(DONE, completion));
+        }
+    }
+
+    /** Waits for every pending write, such as before creating a hard link to a file that may still be in flight. */
+    void drain() throws IOException {
+        drainTo(0);
+    }
+
+    private void drainTo(int limit) throws IOException {
+        while (pending.size() > limit) {
+            PendingWrite write = pending.removeFirst();
+            try {
+                write.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while extracting archive entries", e);
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                IOException failure = cause instanceof IOException
+                        ? (IOException) cause
+                        : new IOException("Failed to extract archive entry", cause);
+                try {
+                    write.completion.run();
+                } catch (IOException | RuntimeException suppressed) {
+                    failure.addSuppressed(suppressed);
+                }
+                throw failure;
+            }
+            write.completion.run();
+        }
+    }
+
+    private void cancelPending() {
+        for (PendingWrite write : pending) {
+            write.future.cancel(true);
+        }
+        pending.clear();
+    }
+
+    @Override
+    public void close() {
+        cancelPending();
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+    }
+
+    private static final class PendingWrite {
+
+        private final Future<Void> future;
+        private final Action completion;
+
+        private PendingWrite(Future<Void> future, Action completion) {
+            this.future = future;
+            this.completion = completion;
+        }
+    }
+}
@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import ca.vanzyl.provisio.archive.zip.RawZipEntryContent;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.commons.codec.DecoderException;
+import org.apache.commons.codec.binary.Hex;
+
+/**
+ * Content fingerprints persisted across archive operations, so unchanged inputs are not hashed again.
+ *
+ * <p>File-backed content is keyed by its path, size, modification time, and file key, and ZIP entries by the same
+ * attributes of their archive plus the entry name, CRC-32, and size. Keys also name the digest algorithm. The least
+ * recently used fingerprints are evicted beyond the maximum size. A cache is used by one assembly thread.
+ */
+final class FingerprintCache {
+
+    private static final String HEADER = "# provisio fingerprint cache 1";
+
+    private final Path file;
+    private final Map<String, ArchiveSession.ContentFingerprint> fingerprints;
+    private final Map<Path, String> archiveStamps = new HashMap<>();
+    private boolean modified;
+
+    private FingerprintCache(Path file, int maximumEntries) {
+        this.file = file;
+        fingerprints = new LinkedHashMap<String, ArchiveSession.ContentFingerprint>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, ArchiveSession.ContentFingerprint> eldest) {
+                return size() > maximumEntries;
+            }
+        };
+    }
+
+    static void validate(int maximumEntries) {
+        if (maximumEntries < 1) {
+            throw new IllegalArgumentException("fingerprint cache entries must be at least 1");
+        }
+    }
+
+    /** Reads the cache in {@code file}, or starts an empty one if it is absent or unrecognized. */
+    static FingerprintCache read(Path file, int maximumEntries) throws IOException {
+        validate(maximumEntries);
+        FingerprintCache cache = new FingerprintCache(file, maximumEntries);
+        if (!Files.isRegularFile(file)) {
+            return cache;
+        }
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            if (!HEADER.equals(reader.readLine())) {
+                return cache;
+            }
+            String line;
+            // Least recently used first, so reading restores the eviction order
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", 4);
+                if (fields.length != 4) {
+                    throw new IOException("Corrupt fingerprint cache " + file);
+                }
+                try {
+                    cache.fingerprints.put(
+                            ExtractionManifest.unescape(fields[3]),
+                            new ArchiveSession.ContentFingerprint(
+                                    Long.parseLong(fields[0]), Long.parseLong(fields[1]), Hex.decodeHex(fields[2])));
+                } catch (NumberFormatException | DecoderException e) {
+                    throw new IOException("Corrupt fingerprint cache " + file, e);
+                }
+            }
+        }
+        return cache;
+    }
+
+    /**
+     * Returns the key of {@code content} for fingerprints computed with {@code algorithm}, or {@code null} if the
+     * content has no stable identity outside its source callback.
+     */
+    String key(EntryContent content, String algorithm) throws IOException {
+        EntryContents.FileContent fileContent = content instanceof EntryContents.FileContent
+                ? (EntryContents.FileContent) content
+                : ContentPrefetcher.source(content);
+        if (fileContent != null) {
+            String stamp = stamp(fileContent.file(), fileContent.size());
+            return stamp == null ? null : "file\t" + algorithm + "\t" + stamp;
+        }
+        if (content instanceof RawZipEntryContent) {
+            RawZipEntryContent zipContent = (RawZipEntryContent) content;
+            if (zipContent.archive() == null
+                    || zipContent.entryName() == null
+                    || zipContent.crc32() == -1
+                    || zipContent.size() == -1) {
+                return null;
+            }
+            String stamp = archiveStamps.get(zipContent.archive());
+            if (stamp == null) {
+                stamp = stamp(zipContent.archive(), -1);
+                if (stamp == null) {
+                    return null;
+                }
+                archiveStamps.put(zipContent.archive(), stamp);
+            }
+            return "zip\t" + algorithm + "\t" + stamp + "\t" + zipContent.crc32() + "\t" + zipContent.size() + "\t"
+                    + zipContent.entryName();
+        }
+        return null;
+    }
+
+    /** Describes a regular file, or returns {@code null} if it is missing or does not have the expected size. */
+    private static String stamp(Path path, long expectedSize) throws IOException {
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        if (!attributes.isRegularFile() || expectedSize != -1 && attributes.size() != expectedSize) {
+            return null;
+        }
+        return path.toAbsolutePath().normalize() + "\t" + attributes.size() + "\t" + attributes.lastModifiedTime()
+                + "\t" + attributes.fileKey();
+    }
+
+    ArchiveSession.ContentFingerprint get(String key) {
+        ArchiveSession.ContentFingerprint fingerprint = fingerprints.get(key);
+        // A hit changes the eviction order
+        modified |= fingerprint != null;
+        return fingerprint;
+    }
+
+    void put(String key, ArchiveSession.ContentFingerprint fingerprint) {
+        fingerprints.put(key, fingerprint);
+        modified = true;
+    }
+
+    /** Replaces the cache file when this operation used or added fingerprints. */
+    void write() throws IOException {
+        if (!modified) {
+            return;
+        }
+        Path directory = file.toAbsolutePath().getParent();
+        Files.createDirectories(directory);
+        Path temporary = Files.createTempFile(directory, file.getFileName().toString(), ".tmp");
+        try {
+            try (BufferedWriter writer = Files.newBufferedWriter(temporary, StandardCharsets.UTF_8)) {
+                writer.write(HEADER);
+                writer.write('\n');
+                for (Map.Entry<String, ArchiveSession.ContentFingerprint> entry : fingerprints.entrySet()) {
+                    ArchiveSession.ContentFingerprint fingerprint = entry.getValue();
+                    writer.write(fingerprint.size + "\t" + fingerprint.crc32 + "\t"
+                            + Hex.encodeHexString(fingerprint.digest) + "\t"
+                            + ExtractionManifest.escape(entry.getKey()));
+                    writer.write('\n');
+                }
+            }
+            Files.move(temporary, file, StandardCopyOption.REPLACE_EXISTING);
+            modified = false;
+        } finally {
+            Files.deleteIfExists(temporary);
+        }
+    }
+}
@@ -7,6 +7,7 @@
  */
 package ca.vanzyl.provisio.archive;
 
+import java.util.concurrent.ExecutorService;
 import java.util.zip.Deflater;
 
 /** Immutable bounded gzip compression settings. */
@@ -15,11 +16,33 @@ final class GzipCompressionOptions {
     static final int DEFAULT_THREADS =
             Math.max(1, Math.min(8, Runtime.getRuntime().availableProcessors()));
     static final int DEFAULT_LEVEL = Deflater.BEST_COMPRESSION;
+    static final int DEFAULT_CHUNK_SIZE = 1024 * 1024;
+    static final int MINIMUM_CHUNK_SIZE = 32 * 1024;
+    static final int MAXIMUM_CHUNK_SIZE = 64 * 1024 * 1024;
+
+    // Automatic sizing keeps several chunks per worker for load balancing without tiny members
+    private static final int AUTOMATIC_CHUNKS_PER_THREAD = 4;
+    private static final int MINIMUM_AUTOMATIC_CHUNK_SIZE = 128 * 1024;
+    private static final int MAXIMUM_AUTOMATIC_CHUNK_SIZE = 8 * 1024 * 1024;
 
     private final int threads;
     private final int level;
+    private final boolean presetDictionary;
+    private final int chunkSize;
+    private final ExecutorService executor;
+    private final boolean memberIndex;
 
     GzipCompressionOptions(int threads, int level) {
+        this(threads, level, false, DEFAULT_CHUNK_SIZE, null, false);
+    }
+
+    GzipCompressionOptions(
+            int threads,
+            int level,
+            boolean presetDictionary,
+            int chunkSize,
+            ExecutorService executor,
+            boolean memberIndex) {
         if (threads < 1 || threads > 256) {
             throw new IllegalArgumentException("gzip compression threads must be between 1 and 256");
         }
@@ -27,7 +50,36 @@ final class GzipCompressionOptions {
             throw new IllegalArgumentException("gzip compression level must be between -1 and 9");
         }
         this.threads = threads;
+        if (chunkSize < MINIMUM_CHUNK_SIZE || chunkSize > MAXIMUM_CHUNK_SIZE) {
+            throw new IllegalArgumentException("gzip compression chunk size must be between 32 KiB and 64 MiB");
+        }
+        if (presetDictionary && memberIndex) {
+            throw new IllegalArgumentException("a gzip member index cannot be combined with a preset dictionary");
+        }
         this.level = level;
+        this.presetDictionary = presetDictionary;
+        this.chunkSize = chunkSize;
+        this.executor = executor;
+        this.memberIndex = memberIndex;
+    }
+
+    /**
+     * Returns a chunk size giving each worker about four chunks of the expected uncompressed output, rounded up to a
+     * power of two between 128 KiB and 8 MiB. The result depends only on its arguments, so output stays deterministic
+     * for a fixed configuration.
+     */
+    static int automaticChunkSize(long expectedSize, int threads) {
+        if (expectedSize < 0) {
+            throw new IllegalArgumentException("expected gzip input size must not be negative");
+        }
+        long target = expectedSize / ((long) threads * AUTOMATIC_CHUNKS_PER_THREAD);
+        if (target <= MINIMUM_AUTOMATIC_CHUNK_SIZE) {
+            return MINIMUM_AUTOMATIC_CHUNK_SIZE;
+        }
+        if (target >= MAXIMUM_AUTOMATIC_CHUNK_SIZE) {
+            return MAXIMUM_AUTOMATIC_CHUNK_SIZE;
+        }
+        return Integer.highestOneBit((int) target - 1) << 1;
     }
 
     int threads() {
@@ -37,4 +89,22 @@ final class GzipCompressionOptions {
     int level() {
         return level;
     }
+
+    boolean presetDictionary() {
+        return presetDictionary;
+    }
+
+    int chunkSize() {
+        return chunkSize;
+    }
+
+    /** Returns the shared caller-owned compression executor, or {@code null} for a private pool per archive. */
+    ExecutorService executor() {
+        return executor;
+    }
+
+    /** Returns whether a seekable index of members and tar entries is appended to the gzip output. */
+    boolean memberIndex() {
+        return memberIndex;
+    }
 }
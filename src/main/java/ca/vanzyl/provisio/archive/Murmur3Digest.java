@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.security.MessageDigest;
+
+/**
+ * Incremental 128-bit MurmurHash3 (the x64 variant, seed 0) exposed as a {@link MessageDigest}, so content can be
+ * fingerprinted through the same code paths as SHA-256.
+ *
+ * <p>The hash is fast but not collision resistant, so equal digests only identify candidate duplicates. The digest is
+ * {@code h1} followed by {@code h2}, each in little-endian byte order.
+ */
+final class Murmur3Digest extends MessageDigest {
+
+    private static final int BLOCK_SIZE = 16;
+    private static final long C1 = 0x87c3_7b91_1142_53d5L;
+    private static final long C2 = 0x4cf5_ad43_2745_937fL;
+
+    private final byte[] block = new byte[BLOCK_SIZE];
+    private int buffered;
+    private long length;
+    private long h1;
+    private long h2;
+
+    Murmur3Digest() {
+        super("MurmurHash3-128");
+    }
+
+    @Override
+    protected int engineGetDigestLength() {
+        return BLOCK_SIZE;
+    }
+
+    @Override
+    protected void engineUpdate(byte input) {
+        block[buffered++] = input;
+        length++;
+        if (buffered == BLOCK_SIZE) {
+            mix(block, 0);
+            buffered = 0;
+        }
+    }
+
+    @Override
+    protected void engineUpdate(byte[] input, int offset, int count) {
+        length += count;
+        int end = offset + count;
+        if (buffered > 0) {
+            int copied = Math.min(BLOCK_SIZE - buffered, count);
+            System.arraycopy(input, offset, block, buffered, copied);
+            buffered += copied;
+            offset += copied;
+            if (buffered < BLOCK_SIZE) {
+                return;
+            }
+            mix(block, 0);
+            buffered = 0;
+        }
+        for (; end - offset >= BLOCK_SIZE; offset += BLOCK_SIZE) {
+            mix(input, offset);
+        }
+        buffered = end - offset;
+        System.arraycopy(input, offset, block, 0, buffered);
+    }
+
+    @Override
+    protected byte[] engineDigest() {
+        long k1 = 0;
+        long k2 = 0;
+        for (int index = buffered - 1; index >= 8; index--) {
+            k2 = k2 << 8 | (block[index] & 0xff);
+        }
+        for (int index = Math.min(buffered, 8) - 1; index >= 0; index--) {
+            k1 = k1 << 8 | (block[index] & 0xff);
+        }
+        if (buffered > 8) {
+            h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+        }
+        if (buffered > 0) {
+            h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        }
+
+        h1 ^= length;
+        h2 ^= length;
+        h1 += h2;
+        h2 += h1;
+        h1 = finalMix(h1);
+        h2 = finalMix(h2);
+        h1 += h2;
+        h2 += h1;
+
+        byte[] digest = new byte[BLOCK_SIZE];
+        for (int index = 0; index < 8; index++) {
+            digest[index] = (byte) (h1 >>> (index * 8));
+            digest[index + 8] = (byte) (h2 >>> (index * 8));
+        }
+        engineReset();
+        return digest;
+    }
+
+    @Override
+    protected void engineReset() {
+        buffered = 0;
+        length = 0;
+        h1 = 0;
+        h2 = 0;
+    }
+
+    private void mix(byte[] input, int offset) {
+        long k1 = littleEndianLong(input, offset);
+        long k2 = littleEndianLong(input, offset + 8);
+
+        h1 ^= Long.rotateLeft(k1 * C1, 31) * C2;
+        h1 = Long.rotateLeft(h1, 27) + h2;
+        h1 = h1 * 5 + 0x52dc_e729;
+
+        h2 ^= Long.rotateLeft(k2 * C2, 33) * C1;
+        h2 = Long.rotateLeft(h2, 31) + h1;
+        h2 = h2 * 5 + 0x3849_5ab5;
+    }
+
+    private static long littleEndianLong(byte[] input, int offset) {
+        return (input[offset] & 0xffL)
+                | (input[offset + 1] & 0xffL) << 8
+                | (input[offset + 2] & 0xffL) << 16
+                | (input[offset + 3] & 0xffL) << 24
+                | (input[offset + 4] & 0xffL) << 32
+                | (input[offset + 5] & 0xffL) << 40
+                | (input[offset + 6] & 0xffL) << 48
+                | (input[offset + 7] & 0xffL) << 56;
+    }
+
+    private static long finalMix(long k) {
+        k ^= k >>> 33;
+        k *= 0xff51_afd7_ed55_8ccdL;
+        k ^= k >>> 33;
+        k *= 0xc4ce_b9fe_1a85_ec53L;
+        k ^= k >>> 33;
+        return k;
+    }
+}
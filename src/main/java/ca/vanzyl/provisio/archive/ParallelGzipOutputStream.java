@@ -9,55 +9,166 @@ package ca.vanzyl.provisio.archive;
 
 import static java.util.Objects.requireNonNull;
 
-import java.io.ByteArrayOutputStream;
+import ca.vanzyl.provisio.archive.tar.GzipMemberIndex;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 
-/** Compresses fixed-size gzip members concurrently and writes them in submission order. */
+/**
+ * Compresses fixed-size gzip members concurrently and writes them in submission order.
+ *
+ * <p>Input chunks and compressed member buffers are recycled through bounded arenas, and workers reuse pooled
+ * {@link Deflater} instances, so steady-state compression allocates no chunk-sized memory or native compressors.
+ *
+ * <p>With a preset dictionary, chunks are instead compressed as sync-flushed blocks of one gzip member, each primed
+ * with the last 32 KiB of the preceding chunk. Chunk boundaries depend only on the chunk size, so the output is still
+ * identical across worker counts.
+ *
+ * <p>With a member index, the independent members are followed by a {@link GzipMemberIndex} of their compressed offsets
+ * and of the tar entry offsets recorded through {@link #indexEntry(String, long)}.
+ */
 final class ParallelGzipOutputStream extends OutputStream {
 
     interface ChunkCompressor {
         CompressedMember compress(byte[] source, int length, int compressionLevel) throws IOException;
     }
 
+    static final int DICTIONARY_SIZE = 32 * 1024;
+
     private static final int GZIP_MAGIC_FIRST = 0x1f;
     private static final int GZIP_MAGIC_SECOND = 0x8b;
     private static final int DEFLATE_METHOD = 8;
     private static final int UNKNOWN_OPERATING_SYSTEM = 255;
+    private static final int HEADER_LENGTH = 10;
+    private static final int TRAILER_LENGTH = 8;
 
     private final OutputStream output;
     private final ExecutorService executor;
-    private final Deque<Future<CompressedMember>> pending = new ArrayDeque<>();
+    private final boolean ownsExecutor;
+    private final Deque<PendingMember> pending = new ArrayDeque<>();
     private final int compressionLevel;
     private final int chunkSize;
     private final int maximumPending;
+    private final boolean presetDictionary;
+    private final boolean memberIndex;
     private final ChunkCompressor compressor;
+    private final PooledChunkCompressor pooledCompressor;
+    private final BufferArena chunks;
+    private final Map<String, Long> entryOffsets = new LinkedHashMap<>();
 
     private byte[] chunk;
     private int position;
+    private byte[] previousChunk;
+    private int previousLength;
+    private byte[] retainedChunk;
+    private long memberCrc32;
+    private long memberLength;
+    private long[] memberOffsets = new long[16];
+    private int memberCount;
+    private long compressedLength;
+    private long uncompressedLength;
+    private boolean headerWritten;
     private boolean submitted;
     private boolean closed;
     private IOException failure;
 
     ParallelGzipOutputStream(OutputStream output, int compressionLevel, int chunkSize, int threads) {
-        this(output, compressionLevel, chunkSize, threads, ParallelGzipOutputStream::compressMember);
+        this(output, compressionLevel, chunkSize, threads, false);
+    }
+
+    ParallelGzipOutputStream(
+            OutputStream output, int compressionLevel, int chunkSize, int threads, boolean presetDictionary) {
+        this(output, compressionLevel, chunkSize, threads, presetDictionary, null);
+    }
+
+    /**
+     * Creates a stream whose workers run on {@code executor}, or on a private pool of {@code threads} workers when it
+     * is {@code null}. A supplied executor is shared rather than owned and is never shut down by this stream; the
+     * worker count then only bounds this stream's pending chunks.
+     */
+    ParallelGzipOutputStream(
+            OutputStream output,
+            int compressionLevel,
+            int chunkSize,
+            int threads,
+            boolean presetDictionary,
+            ExecutorService executor) {
+        this(output, compressionLevel, chunkSize, threads, presetDictionary, false, executor);
+    }
+
+    /**
+     * Creates a stream that, with {@code memberIndex}, appends a {@link GzipMemberIndex} after its members. A member
+     * index requires independent members and cannot be combined with a preset dictionary.
+     */
+    ParallelGzipOutputStream(
+            OutputStream output,
+            int compressionLevel,
+            int chunkSize,
+            int threads,
+            boolean presetDictionary,
+            boolean memberIndex,
+            ExecutorService executor) {
+        this(
+                output,
+                compressionLevel,
+                chunkSize,
+                threads,
+                presetDictionary,
+                memberIndex,
+                executor,
+                new PooledChunkCompressor(compressionLevel, chunkSize, maximumPending(threads)));
     }
 
     ParallelGzipOutputStream(
             OutputStream output, int compressionLevel, int chunkSize, int threads, ChunkCompressor compressor) {
+        this(output, compressionLevel, chunkSize, threads, false, false, null, requireNonNull(compressor), null);
+    }
+
+    private ParallelGzipOutputStream(
+            OutputStream output,
+            int compressionLevel,
+            int chunkSize,
+            int threads,
+            boolean presetDictionary,
+            boolean memberIndex,
+            ExecutorService executor,
+            PooledChunkCompressor pooledCompressor) {
+        this(
+                output,
+                compressionLevel,
+                chunkSize,
+                threads,
+                presetDictionary,
+                memberIndex,
+                executor,
+                pooledCompressor,
+                pooledCompressor);
+    }
+
+    private ParallelGzipOutputStream(
+            OutputStream output,
+            int compressionLevel,
+            int chunkSize,
+            int threads,
+            boolean presetDictionary,
+            boolean memberIndex,
+            ExecutorService executor,
+            ChunkCompressor compressor,
+            PooledChunkCompressor pooledCompressor) {
         this.output = requireNonNull(output);
-        this.compressor = requireNonNull(compressor);
+        this.compressor = compressor;
+        this.pooledCompressor = pooledCompressor;
         if (threads < 1 || threads > 256) {
             throw new IllegalArgumentException("threads must be between 1 and 256");
         }
@@ -67,11 +178,21 @@ final class ParallelGzipOutputStream extends OutputStream {
         if (compressionLevel < Deflater.DEFAULT_COMPRESSION || compressionLevel > Deflater.BEST_COMPRESSION) {
             throw new IllegalArgumentException("compression level must be between -1 and 9");
         }
+        if (presetDictionary && memberIndex) {
+            throw new IllegalArgumentException("a member index cannot be combined with a preset dictionary");
+        }
         this.compressionLevel = compressionLevel;
         this.chunkSize = chunkSize;
-        maximumPending = Math.multiplyExact(threads, 2);
-        executor = Executors.newFixedThreadPool(threads, new CompressorThreadFactory());
-        chunk = new byte[chunkSize];
+        this.presetDictionary = presetDictionary;
+        this.memberIndex = memberIndex;
+        maximumPending = maximumPending(threads);
+        // Every pending chunk plus the one being filled, and the dictionary of the oldest pending chunk
+        chunks = new BufferArena(chunkSize, maximumPending + (presetDictionary ? 2 : 1));
+        ownsExecutor = executor == null;
+        this.executor = ownsExecutor
+                ? Executors.newFixedThreadPool(threads, new CompressionThreadFactory("provisio-gzip"))
+                : executor;
+        chunk = chunks.acquire();
     }
 
     @Override
@@ -108,7 +229,7 @@ final class ParallelGzipOutputStream extends OutputStream {
     public void flush() throws IOException {
         ensureWritable();
         try {
-            while (!pending.isEmpty() && pending.peekFirst().isDone()) {
+            while (!pending.isEmpty() && pending.peekFirst().future.isDone()) {
                 writeNextMember();
             }
             output.flush();
@@ -127,16 +248,33 @@ final class ParallelGzipOutputStream extends OutputStream {
         IOException closeFailure = null;
         try {
             if (failure == null) {
-                if (position > 0 || !submitted) {
-                    submitChunk();
+                // A dictionary-primed member always ends with a final block, even an empty one
+                if (position > 0 || !submitted || presetDictionary) {
+                    submitChunk(true);
                 }
                 drainTo(0);
+                if (presetDictionary) {
+                    writeTrailer();
+                }
+                if (memberIndex) {
+                    new GzipMemberIndex(
+                                    chunkSize,
+                                    uncompressedLength,
+                                    Arrays.copyOf(memberOffsets, memberCount),
+                                    entryOffsets)
+                            .writeTo(output, compressedLength);
+                }
             }
         } catch (IOException e) {
             closeFailure = e;
         } finally {
             cancelPending();
-            executor.shutdownNow();
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            if (pooledCompressor != null) {
+                pooledCompressor.close();
+            }
             try {
                 output.close();
             } catch (IOException e) {
@@ -152,6 +290,17 @@ final class ParallelGzipOutputStream extends OutputStream {
         }
     }
 
+    /**
+     * Records the uncompressed offset of a tar entry header in the member index. Only the first entry with a name is
+     * recorded, matching a selective read of an archive without an index, which stops at the first match.
+     */
+    void indexEntry(String name, long offset) {
+        if (!memberIndex) {
+            throw new IllegalStateException("member index is not enabled");
+        }
+        entryOffsets.putIfAbsent(requireNonNull(name), offset);
+    }
+
     int pendingChunks() {
         return pending.size();
     }
@@ -160,6 +309,18 @@ final class ParallelGzipOutputStream extends OutputStream {
         return maximumPending;
     }
 
+    int allocatedChunks() {
+        return chunks.allocated();
+    }
+
+    int createdDeflaters() {
+        return pooledCompressor == null ? 0 : pooledCompressor.deflaters.created();
+    }
+
+    private static int maximumPending(int threads) {
+        return Math.multiplyExact(threads, 2);
+    }
+
     private void ensureWritable() throws IOException {
         if (closed) {
             throw new IOException("Stream is closed");
@@ -170,21 +331,41 @@ final class ParallelGzipOutputStream extends OutputStream {
     }
 
     private void submit() throws IOException {
-        submitChunk();
         try {
+            submitChunk(false);
             drainTo(maximumPending);
         } catch (IOException e) {
             fail(e);
             throw e;
         }
+        // Acquire after draining so a recycled chunk can be reused instead of allocating a new one
+        chunk = chunks.acquire();
     }
 
-    private void submitChunk() {
+    private void submitChunk(boolean last) throws IOException {
         byte[] source = chunk;
         int length = position;
-        pending.addLast(executor.submit(() -> compressor.compress(source, length, compressionLevel)));
+        Future<CompressedMember> future;
+        try {
+            if (presetDictionary) {
+                byte[] dictionary = previousChunk;
+                int dictionaryLength = previousLength;
+                future = executor.submit(
+                        () -> pooledCompressor.compressBlock(source, length, dictionary, dictionaryLength, last));
+            } else {
+                future = executor.submit(() -> compressor.compress(source, length, compressionLevel));
+            }
+        } catch (RejectedExecutionException e) {
+            throw new IOException("Gzip compression executor rejected work", e);
+        }
+        if (presetDictionary) {
+            previousChunk = source;
+            previousLength = length;
+        }
+        pending.addLast(new PendingMember(source, future));
+        uncompressedLength += length;
         submitted = true;
-        chunk = new byte[chunkSize];
+        chunk = null;
         position = 0;
     }
 
@@ -195,9 +376,20 @@ final class ParallelGzipOutputStream extends OutputStream {
     }
 
     private void writeNextMember() throws IOException {
-        Future<CompressedMember> member = pending.removeFirst();
+        PendingMember member = pending.removeFirst();
         try {
-            member.get().writeTo(output);
+            CompressedMember compressed = member.future.get();
+            if (presetDictionary) {
+                writeBlock(compressed);
+            } else {
+                if (memberIndex) {
+                    recordMember();
+                }
+                compressed.writeTo(output);
+                compressedLength += compressed.length;
+            }
+            compressed.recycle();
+            releaseChunk(member.chunk);
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
             throw new IOException("Interrupted while compressing gzip content", e);
@@ -210,42 +402,194 @@ final class ParallelGzipOutputStream extends OutputStream {
         }
     }
 
+    private void recordMember() {
+        if (memberCount == memberOffsets.length) {
+            memberOffsets = Arrays.copyOf(memberOffsets, memberCount * 2);
+        }
+        memberOffsets[memberCount++] = compressedLength;
+    }
+
+    private void releaseChunk(byte[] completed) {
+        // The worker has finished reading a chunk once its member is complete. With a preset dictionary the chunk
+        // is still read as the dictionary of the next chunk, so it is released one member later.
+        if (presetDictionary) {
+            chunks.release(retainedChunk);
+            retainedChunk = completed;
+        } else {
+            chunks.release(completed);
+        }
+    }
+
+    private void writeBlock(CompressedMember block) throws IOException {
+        if (!headerWritten) {
+            byte[] header = new byte[HEADER_LENGTH];
+            writeHeader(header);
+            output.write(header);
+            headerWritten = true;
+        }
+        block.writeTo(output);
+        memberCrc32 = combineCrc32(memberCrc32, block.crc32, block.uncompressedLength);
+        memberLength += block.uncompressedLength;
+    }
+
+    private void writeTrailer() throws IOException {
+        byte[] trailer = new byte[TRAILER_LENGTH];
+        writeLittleEndian(trailer, 0, memberCrc32);
+        writeLittleEndian(trailer, 4, memberLength);
+        output.write(trailer);
+    }
+
     private void fail(IOException exception) {
         failure = exception;
         cancelPending();
     }
 
     private void cancelPending() {
-        for (Future<CompressedMember> future : pending) {
-            future.cancel(true);
+        // Cancelled chunks are not recycled because a worker may still be reading them
+        for (PendingMember member : pending) {
+            member.future.cancel(true);
         }
         pending.clear();
     }
 
     static CompressedMember compressMember(byte[] source, int length, int compressionLevel) throws IOException {
-        MemberOutputStream member = new MemberOutputStream(compressedMemberCapacity(length));
-        member.write(GZIP_MAGIC_FIRST);
-        member.write(GZIP_MAGIC_SECOND);
-        member.write(DEFLATE_METHOD);
-        member.write(0); // flags
-        writeLittleEndian(member, 0); // modification time
-        member.write(0); // extra flags
-        member.write(UNKNOWN_OPERATING_SYSTEM);
-
         Deflater deflater = new Deflater(compressionLevel, true);
         try {
-            try (DeflaterOutputStream deflaterStream = new DeflaterOutputStream(member, deflater, 8192)) {
-                deflaterStream.write(source, 0, length);
-            }
+            return compressMember(deflater, source, length, new byte[compressedMemberCapacity(length)], null);
         } finally {
             deflater.end();
         }
+    }
+
+    private static CompressedMember compressMember(
+            Deflater deflater, byte[] source, int length, byte[] buffer, BufferArena arena) {
+        writeHeader(buffer);
+        deflater.setInput(source, 0, length);
+        deflater.finish();
+        int position = HEADER_LENGTH;
+        while (!deflater.finished()) {
+            if (position == buffer.length - TRAILER_LENGTH) {
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            position += deflater.deflate(buffer, position, buffer.length - TRAILER_LENGTH - position);
+        }
+
+        long crc32 = crc32(source, length);
+        writeLittleEndian(buffer, position, crc32);
+        writeLittleEndian(buffer, position + 4, length);
+        return new CompressedMember(buffer, position + TRAILER_LENGTH, arena, crc32, length);
+    }
 
+    /** Compresses one raw DEFLATE block sequence that continues the stream after its dictionary. */
+    private static CompressedMember compressBlock(
+            Deflater deflater,
+            byte[] source,
+            int length,
+            byte[] dictionary,
+            int dictionaryLength,
+            boolean last,
+            byte[] buffer,
+            BufferArena arena) {
+        if (dictionaryLength > 0) {
+            int window = Math.min(DICTIONARY_SIZE, dictionaryLength);
+            deflater.setDictionary(dictionary, dictionaryLength - window, window);
+        }
+        deflater.setInput(source, 0, length);
+        int position = 0;
+        if (last) {
+            deflater.finish();
+            while (!deflater.finished()) {
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                position += deflater.deflate(buffer, position, buffer.length - position);
+            }
+        } else {
+            // A sync flush ends on a byte boundary without a final block, so the next block can follow it
+            while (true) {
+                if (position == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                int available = buffer.length - position;
+                int count = deflater.deflate(buffer, position, available, Deflater.SYNC_FLUSH);
+                position += count;
+                if (count < available) {
+                    break;
+                }
+            }
+        }
+        return new CompressedMember(buffer, position, arena, crc32(source, length), length);
+    }
+
+    private static void writeHeader(byte[] buffer) {
+        buffer[0] = (byte) GZIP_MAGIC_FIRST;
+        buffer[1] = (byte) GZIP_MAGIC_SECOND;
+        buffer[2] = DEFLATE_METHOD;
+        buffer[3] = 0; // flags
+        writeLittleEndian(buffer, 4, 0); // modification time
+        buffer[8] = 0; // extra flags
+        buffer[9] = (byte) UNKNOWN_OPERATING_SYSTEM;
+    }
+
+    private static long crc32(byte[] source, int length) {
         CRC32 crc32 = new CRC32();
         crc32.update(source, 0, length);
-        writeLittleEndian(member, crc32.getValue());
-        writeLittleEndian(member, length);
-        return member.compressedMember();
+        return crc32.getValue();
+    }
+
+    /**
+     * Returns the CRC-32 of two concatenated sequences from their individual CRC-32 values, as zlib's
+     * {@code crc32_combine} does, by applying {@code length} zero bits to the first CRC with GF(2) matrices.
+     */
+    static long combineCrc32(long first, long second, long secondLength) {
+        if (secondLength <= 0) {
+            return first;
+        }
+        long[] even = new long[32];
+        long[] odd = new long[32];
+        odd[0] = 0xedb88320L;
+        long row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        squareMatrix(even, odd); // two zero bits
+        squareMatrix(odd, even); // four zero bits
+
+        long crc = first;
+        long remaining = secondLength;
+        do {
+            squareMatrix(even, odd);
+            if ((remaining & 1) != 0) {
+                crc = multiplyMatrix(even, crc);
+            }
+            remaining >>>= 1;
+            if (remaining == 0) {
+                break;
+            }
+            squareMatrix(odd, even);
+            if ((remaining & 1) != 0) {
+                crc = multiplyMatrix(odd, crc);
+            }
+            remaining >>>= 1;
+        } while (remaining != 0);
+        return crc ^ second;
+    }
+
+    private static long multiplyMatrix(long[] matrix, long vector) {
+        long sum = 0;
+        for (int index = 0; vector != 0; index++, vector >>>= 1) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[index];
+            }
+        }
+        return sum;
+    }
+
+    private static void squareMatrix(long[] square, long[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = multiplyMatrix(matrix, matrix[n]);
+        }
     }
 
     private static int compressedMemberCapacity(int length) {
@@ -253,21 +597,27 @@ final class ParallelGzipOutputStream extends OutputStream {
         return (int) Math.min(capacity, Integer.MAX_VALUE - 8L);
     }
 
-    private static void writeLittleEndian(ByteArrayOutputStream output, long value) {
-        output.write((int) (value & 0xff));
-        output.write((int) ((value >>> 8) & 0xff));
-        output.write((int) ((value >>> 16) & 0xff));
-        output.write((int) ((value >>> 24) & 0xff));
+    private static void writeLittleEndian(byte[] buffer, int offset, long value) {
+        buffer[offset] = (byte) (value & 0xff);
+        buffer[offset + 1] = (byte) ((value >>> 8) & 0xff);
+        buffer[offset + 2] = (byte) ((value >>> 16) & 0xff);
+        buffer[offset + 3] = (byte) ((value >>> 24) & 0xff);
     }
 
     static final class CompressedMember {
 
         private final byte[] buffer;
         private final int length;
+        private final BufferArena arena;
+        private final long crc32;
+        private final int uncompressedLength;
 
-        private CompressedMember(byte[] buffer, int length) {
+        private CompressedMember(byte[] buffer, int length, BufferArena arena, long crc32, int uncompressedLength) {
             this.buffer = buffer;
             this.length = length;
+            this.arena = arena;
+            this.crc32 = crc32;
+            this.uncompressedLength = uncompressedLength;
         }
 
         byte[] buffer() {
@@ -281,30 +631,59 @@ final class ParallelGzipOutputStream extends OutputStream {
         private void writeTo(OutputStream output) throws IOException {
             output.write(buffer, 0, length);
         }
+
+        private void recycle() {
+            if (arena != null) {
+                arena.release(buffer);
+            }
+        }
     }
 
-    private static final class MemberOutputStream extends ByteArrayOutputStream {
+    private static final class PendingMember {
 
-        private MemberOutputStream(int capacity) {
-            super(capacity);
-        }
+        private final byte[] chunk;
+        private final Future<CompressedMember> future;
 
-        private CompressedMember compressedMember() {
-            return new CompressedMember(buf, count);
+        private PendingMember(byte[] chunk, Future<CompressedMember> future) {
+            this.chunk = chunk;
+            this.future = future;
         }
     }
 
-    private static final class CompressorThreadFactory implements ThreadFactory {
+    /** Compresses members and blocks with pooled deflaters into recycled output buffers. */
+    private static final class PooledChunkCompressor implements ChunkCompressor {
+
+        private final DeflaterPool deflaters;
+        private final BufferArena buffers;
 
-        private static final AtomicInteger POOL_IDS = new AtomicInteger();
-        private final AtomicInteger threadIds = new AtomicInteger();
-        private final int poolId = POOL_IDS.incrementAndGet();
+        private PooledChunkCompressor(int compressionLevel, int chunkSize, int maximumPending) {
+            deflaters = new DeflaterPool(compressionLevel);
+            buffers = new BufferArena(compressedMemberCapacity(chunkSize), maximumPending);
+        }
 
         @Override
-        public Thread newThread(Runnable runnable) {
-            Thread thread = new Thread(runnable, "provisio-gzip-" + poolId + "-" + threadIds.incrementAndGet());
-            thread.setDaemon(true);
-            return thread;
+        public CompressedMember compress(byte[] source, int length, int compressionLevel) {
+            Deflater deflater = deflaters.acquire();
+            try {
+                return compressMember(deflater, source, length, buffers.acquire(), buffers);
+            } finally {
+                deflaters.release(deflater);
+            }
+        }
+
+        private CompressedMember compressBlock(
+                byte[] source, int length, byte[] dictionary, int dictionaryLength, boolean last) {
+            Deflater deflater = deflaters.acquire();
+            try {
+                return ParallelGzipOutputStream.compressBlock(
+                        deflater, source, length, dictionary, dictionaryLength, last, buffers.acquire(), buffers);
+            } finally {
+                deflaters.release(deflater);
+            }
+        }
+
+        private void close() {
+            deflaters.close();
         }
     }
 }
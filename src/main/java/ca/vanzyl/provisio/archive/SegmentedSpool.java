@@ -0,0 +1,196 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Spools entry content by appending it to a few large temporary files, each entry read back from its offset with
+ * positional reads, instead of creating and deleting one temporary file per entry.
+ *
+ * <p>A new segment starts once the current one reaches {@link #SEGMENT_SIZE}. Positional reads do not move the shared
+ * channel position, so spooled content can be read by several threads while later entries are appended.
+ */
+final class SegmentedSpool implements Closeable {
+
+    /** Writes one entry at the current position of a segment, leaving the segment open. */
+    @FunctionalInterface
+    interface SegmentWriter {
+        void write(WritableByteChannel segment) throws IOException;
+    }
+
+    static final long SEGMENT_SIZE = 1024 * 1024 * 1024;
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+
+    private final Path temporaryDirectory;
+    private final List<Path> segmentFiles = new ArrayList<>();
+    private final List<FileChannel> segments = new ArrayList<>();
+    private FileChannel segment;
+    private long segmentSize;
+
+    SegmentedSpool(Path temporaryDirectory) {
+        this.temporaryDirectory = temporaryDirectory;
+    }
+
+    /** Appends the bytes of {@code writer} and returns repeatable content that reads them back until closed. */
+    EntryContent append(SegmentWriter writer) throws IOException {
+        if (segment == null || segmentSize >= SEGMENT_SIZE) {
+            Path file = Files.createTempFile(temporaryDirectory, ".provisio-entry-", ".tmp");
+            segmentFiles.add(file);
+            segment = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            segments.add(segment);
+            segmentSize = 0;
+        }
+        long offset = segmentSize;
+        boolean completed = false;
+        try {
+            segment.position(offset);
+            writer.write(segment);
+            segmentSize = segment.position();
+            completed = true;
+        } finally {
+            if (!completed) {
+                // Discard a partial entry so the next one starts at the same offset
+                segment.truncate(offset);
+            }
+        }
+        return new SpooledContent(segment, offset, segmentSize - offset);
+    }
+
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (FileChannel channel : segments) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        for (Path file : segmentFiles) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                failure = addFailure(failure, e);
+            }
+        }
+        segments.clear();
+        segmentFiles.clear();
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static IOException addFailure(IOException failure, IOException e) {
+        if (failure == null) {
+            return e;
+        }
+        failure.addSuppressed(e);
+        return failure;
+    }
+
+    /** A range of a segment, valid until the spool is closed. */
+    static final class SpooledContent implements EntryContent {
+
+        private final FileChannel segment;
+        private final long offset;
+        private final long size;
+
+        private SpooledContent(FileChannel segment, long offset, long size) {
+            this.segment = segment;
+            this.offset = offset;
+            this.size = size;
+        }
+
+        @Override
+        public InputStream open() {
+            return new InputStream() {
+                private long position = offset;
+                private final long end = offset + size;
+
+                @Override
+                public int read() throws IOException {
+                    byte[] single = new byte[1];
+                    return read(single, 0, 1) == -1 ? -1 : single[0] & 0xff;
+                }
+
+                @Override
+                public int read(byte[] bytes, int off, int length) throws IOException {
+                    if (length == 0) {
+                        return 0;
+                    }
+                    if (position >= end) {
+                        return -1;
+                    }
+                    ByteBuffer buffer = ByteBuffer.wrap(bytes, off, (int) Math.min(length, end - position));
+                    int count = segment.read(buffer, position);
+                    if (count < 0) {
+                        throw new IOException("Spool segment ended before its entry");
+                    }
+                    position += count;
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public long transferTo(WritableByteChannel target) throws IOException {
+            long position = offset;
+            long end = offset + size;
+            if (target instanceof FileChannel) {
+                while (position < end) {
+                    long count = segment.transferTo(position, end - position, target);
+                    if (count <= 0) {
+                        throw new IOException("Spool segment ended before its entry");
+                    }
+                    position += count;
+                }
+                return size;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(READ_BUFFER_SIZE, Math.max(1, size)));
+            while (position < end) {
+                ((Buffer) buffer).clear();
+                if (end - position < buffer.capacity()) {
+                    ((Buffer) buffer).limit((int) (end - position));
+                }
+                int count = segment.read(buffer, position);
+                if (count < 0) {
+                    throw new IOException("Spool segment ended before its entry");
+                }
+                ((Buffer) buffer).flip();
+                while (buffer.hasRemaining()) {
+                    target.write(buffer);
+                }
+                position += count;
+            }
+            return size;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public boolean isRepeatable() {
+            return true;
+        }
+    }
+}
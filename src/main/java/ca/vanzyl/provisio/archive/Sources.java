@@ -25,6 +25,17 @@ public final class Sources {
         return directories(directory);
     }
 
+    /**
+     * Creates a source rooted at one filesystem directory whose file attributes are read ahead on
+     * {@code metadataThreads} workers, for filesystems where each metadata call is a network round trip.
+     */
+    public static Source directory(Path directory, int metadataThreads) {
+        return new DirectorySource(
+                metadataThreads,
+                new CompressionThreadFactory("provisio-metadata"),
+                requireNonNull(directory, "directory"));
+    }
+
     /** Creates one source rooted at each supplied filesystem directory. */
     public static Source directories(Path... directories) {
         requireNonNull(directories, "directories");
@@ -54,6 +65,17 @@ public final class Sources {
         return new TarGzArchiveSource(requireNonNull(archive, "archive"));
     }
 
+    /**
+     * Creates a streaming source for a gzip-compressed tar archive whose concatenated gzip members are inflated ahead on
+     * {@code decompressionThreads} workers. Single-member input is inflated sequentially.
+     */
+    public static Source tarGz(Path archive, int decompressionThreads) {
+        return new TarGzArchiveSource(
+                requireNonNull(archive, "archive"),
+                decompressionThreads,
+                new CompressionThreadFactory("provisio-gunzip"));
+    }
+
     /** Creates a streaming source by detecting the format from the archive file name. */
     public static Source archive(Path archive) {
         Path input = requireNonNull(archive, "archive");
@@ -8,27 +8,34 @@
 package ca.vanzyl.provisio.archive;
 
 import java.io.IOException;
-import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveOutputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
-import org.apache.commons.io.IOUtils;
 
 final class TarGzArchiveWriter implements ArchiveWriter {
 
-    private static final int COMPRESSION_CHUNK_SIZE = 1024 * 1024;
-
+    private final ParallelGzipOutputStream gzipStream;
     private final TarArchiveOutputStream outputStream;
+    private final boolean memberIndex;
 
     TarGzArchiveWriter(Path archive, boolean posixLongFileMode, GzipCompressionOptions gzipCompression)
             throws IOException {
-        outputStream = new TarArchiveOutputStream(new ParallelGzipOutputStream(
+        memberIndex = gzipCompression.memberIndex();
+        gzipStream = new ParallelGzipOutputStream(
                 Files.newOutputStream(archive),
                 gzipCompression.level(),
-                COMPRESSION_CHUNK_SIZE,
-                gzipCompression.threads()));
+                gzipCompression.chunkSize(),
+                gzipCompression.threads(),
+                gzipCompression.presetDictionary(),
+                memberIndex,
+                gzipCompression.executor());
+        // Indexed output is blocked by single records so the tar byte count is exact at every entry boundary
+        outputStream = memberIndex
+                ? new TarArchiveOutputStream(gzipStream, TarConstants.DEFAULT_RCDSIZE)
+                : new TarArchiveOutputStream(gzipStream);
         if (posixLongFileMode) {
             outputStream.setLongFileMode(TarArchiveOutputStream.LONGFILE_POSIX);
         }
@@ -62,11 +69,12 @@ final class TarGzArchiveWriter implements ArchiveWriter {
             archiveEntry.setSize(entry.getContent().size());
         }
 
+        if (memberIndex) {
+            gzipStream.indexEntry(archiveEntry.getName(), outputStream.getBytesWritten());
+        }
         outputStream.putArchiveEntry(archiveEntry);
         if (entry.getType() == EntryType.FILE) {
-            try (InputStream inputStream = entry.getContent().open()) {
-                IOUtils.copyLarge(inputStream, outputStream);
-            }
+            entry.getContent().transferTo(Channels.newChannel(outputStream));
         }
         outputStream.closeArchiveEntry();
     }
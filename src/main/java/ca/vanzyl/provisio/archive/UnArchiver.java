@@ -10,26 +10,53 @@ package ca.vanzyl.provisio.archive;
 import static java.util.Objects.requireNonNull;
 
 import ca.vanzyl.provisio.archive.perms.FileModes;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import org.apache.commons.io.IOUtils;
 import org.codehaus.plexus.util.io.CachingOutputStream;
 
 public final class UnArchiver {
 
+    /** Largest regular file, in bytes, buffered in memory and written by an extraction worker. */
+    static final int PARALLEL_ENTRY_LIMIT = 1024 * 1024;
+
+    private static final int WRITE_BUFFER_SIZE = 64 * 1024;
+    // Indexed by the nine permission bits, so extraction does not build a set per entry
+    private static final Set<PosixFilePermission>[] PERMISSIONS = createPermissionTable();
+
     private final Selector selector;
     private final boolean useRoot;
     private final boolean flatten;
     private final boolean dereferenceHardlinks;
+    private final int gzipDecompressionThreads;
+    private final int extractionThreads;
+    private final ExtractionMode extractionMode;
+    private final boolean extractionManifest;
+    private final boolean deferPermissions;
     private final UnArchiverBuilder builder;
 
     private UnArchiver(UnArchiverBuilder builder) {
@@ -37,6 +64,11 @@ public final class UnArchiver {
         this.useRoot = builder.useRoot;
         this.flatten = builder.flatten;
         this.dereferenceHardlinks = builder.dereferenceHardlinks;
+        this.gzipDecompressionThreads = builder.gzipDecompressionThreads;
+        this.extractionThreads = builder.extractionThreads;
+        this.extractionMode = builder.extractionMode;
+        this.extractionManifest = builder.extractionManifest;
+        this.deferPermissions = builder.deferPermissions;
         this.selector = new Selector(builder.includes, builder.excludes);
     }
 
@@ -58,27 +90,80 @@ public final class UnArchiver {
         // These are the contributions that unpacking this archive is providing
         //
         Files.createDirectories(destinationDirectory);
-        try (Source source = ArchiveFormat.detect(inputArchive).openSource(inputArchive)) {
-            Set<String> outputPaths = new HashSet<>();
-            source.forEachEntry(archiveEntry ->
-                    unarchiveEntry(inputArchive, destinationDirectory, entryProcessor, archiveEntry, outputPaths));
+        if (extractionMode == ExtractionMode.FRESH) {
+            ensureEmpty(destinationDirectory);
+        }
+        ExtractionManifest manifest = extractionManifest ? ExtractionManifest.read(destinationDirectory) : null;
+        try (Source source = ArchiveFormat.detect(inputArchive).openSource(inputArchive, gzipDecompressionThreads);
+                ExtractionQueue queue = new ExtractionQueue(extractionThreads)) {
+            Extraction extraction = new Extraction(inputArchive, destinationDirectory, entryProcessor, queue, manifest);
+            source.forEachEntry(archiveEntry -> unarchiveEntry(extraction, archiveEntry));
+            queue.drain();
+            applyDeferredPermissions(extraction);
+        }
+        if (manifest != null) {
+            manifest.deleteRemoved(destinationDirectory);
+            manifest.write(destinationDirectory);
         }
     }
 
-    private void unarchiveEntry(
-            Path archive,
-            Path outputDirectory,
-            UnarchivingEntryProcessor entryProcessor,
-            SourceEntry archiveEntry,
-            Set<String> outputPaths)
-            throws IOException {
+    /**
+     * Copies the content of one regular-file entry to {@code output} without extracting the rest of the archive. ZIP
+     * entries are located through the central directory. A tar.gz archive written with a gzip member index is inflated
+     * only from the entry's member; otherwise it is read until the entry is found.
+     *
+     * @param name entry name exactly as stored in the archive, unaffected by includes, root, or flattening settings
+     * @throws IOException if the entry is missing or is not a regular file
+     */
+    public void extractEntry(Path archive, String name, OutputStream output) throws IOException {
+        requireNonNull(name);
+        requireNonNull(output);
+        boolean[] found = new boolean[1];
+        readEntries(archive, Collections.singleton(name), entry -> {
+            if (entry.getType() != EntryType.FILE) {
+                throw new IOException("Archive entry " + name + " in " + archive + " is not a regular file");
+            }
+            try (InputStream inputStream = entry.getContent().open()) {
+                IOUtils.copyLarge(inputStream, output);
+            }
+            found[0] = true;
+        });
+        if (!found[0]) {
+            throw new IOException("Archive entry " + name + " not found in " + archive);
+        }
+    }
+
+    /**
+     * Visits the entries whose names are in {@code names}, reading as little of the archive as its format allows.
+     * Names missing from the archive are ignored. As with {@link Source#forEachEntry(Source.EntryConsumer)}, an entry
+     * and its content are valid only for the duration of the consumer callback.
+     *
+     * @param names entry names exactly as stored in the archive, with a trailing {@code /} for directories
+     */
+    public void readEntries(Path archive, Set<String> names, Source.EntryConsumer consumer) throws IOException {
+        requireNonNull(archive);
+        requireNonNull(consumer);
+        Set<String> requested = new LinkedHashSet<>(names);
+        if (requested.isEmpty()) {
+            return;
+        }
+        Path inputArchive = archive.toAbsolutePath();
+        ArchiveFormat.detect(inputArchive).forEachEntry(inputArchive, requested, gzipDecompressionThreads, consumer);
+    }
+
+    private void unarchiveEntry(Extraction extraction, SourceEntry archiveEntry) throws IOException {
+        Path archive = extraction.archive;
+        Path outputDirectory = extraction.outputDirectory;
+        UnarchivingEntryProcessor entryProcessor = extraction.entryProcessor;
+        ExtractionQueue queue = extraction.queue;
+        ExtractionManifest manifest = extraction.manifest;
         ArchivePath entryPath = adjustPath(true, archiveEntry.getName(), archiveEntry.getType(), entryProcessor);
         String entryName = entryPath.entryName(archiveEntry.getType());
 
         if (!selector.include(entryName)) {
             return;
         }
-        if (!outputPaths.add(entryPath.value())) {
+        if (!extraction.outputPaths.add(entryPath.value())) {
             throw new IOException("Duplicate archive output path " + entryPath.value() + " in " + archive);
         }
         Path outputFile = outputDirectory.resolve(entryPath.value()).normalize().toAbsolutePath();
@@ -86,9 +171,14 @@ public final class UnArchiver {
             throw new IOException("Archive escape attempt detected in " + archive);
         }
 
+        ExtractionQueue.Action processed = () -> entryProcessor.processed(entryName, outputFile);
+        String outputPath = entryPath.value();
+        if (manifest != null && archiveEntry.getType() != EntryType.FILE) {
+            manifest.record(outputPath, archiveEntry);
+        }
         if (archiveEntry.isDirectory()) {
-            Files.createDirectories(outputFile);
-            entryProcessor.processed(entryName, outputFile);
+            extraction.createDirectories(outputFile);
+            queue.completed(processed);
             return;
         }
 
@@ -97,12 +187,10 @@ public final class UnArchiver {
         // match the output directory which exists so it will cause an error trying to make it
         //
         if (outputFile.equals(outputDirectory)) {
-            entryProcessor.processed(entryName, outputFile);
+            queue.completed(processed);
             return;
         }
-        if (!Files.isDirectory(outputFile.getParent())) {
-            Files.createDirectories(outputFile.getParent());
-        }
+        extraction.createDirectories(outputFile.getParent());
 
         if (archiveEntry.isHardLink()) {
             ArchivePath hardLinkPath = adjustPath(false, archiveEntry.getLinkTarget(), EntryType.FILE, entryProcessor);
@@ -111,32 +199,186 @@ public final class UnArchiver {
             if (!hardLinkSource.startsWith(outputDirectory)) {
                 throw new IOException("Archive hardlink escape attempt detected in " + archive);
             }
+            // The link target may still be written by a worker
+            queue.drain();
             if (dereferenceHardlinks) {
                 Files.copy(hardLinkSource, outputFile, StandardCopyOption.REPLACE_EXISTING);
             } else {
                 // Remove any existing file or link as Files.createLink has no option to overwrite
-                Files.deleteIfExists(outputFile);
+                if (extractionMode != ExtractionMode.FRESH) {
+                    Files.deleteIfExists(outputFile);
+                }
                 Files.createLink(outputFile, hardLinkSource);
             }
-            setFilePermission(archiveEntry, outputFile);
-            entryProcessor.processed(entryName, outputFile);
+            applyPermissions(extraction, outputFile, filePermissions(archiveEntry));
+            queue.completed(processed);
         } else if (archiveEntry.isSymbolicLink()) {
             String target = ArchivePath.validateSymbolicLinkTarget(entryPath, archiveEntry.getLinkTarget());
 
-            Files.createDirectories(outputFile.getParent());
-            Files.deleteIfExists(outputFile);
+            if (extractionMode != ExtractionMode.FRESH) {
+                Files.deleteIfExists(outputFile);
+            }
             Files.createSymbolicLink(outputFile, Paths.get(target));
-            entryProcessor.processed(entryName, outputFile);
+            queue.completed(processed);
+        } else if (isUnchanged(outputFile, archiveEntry)) {
+            if (manifest != null) {
+                // An incrementally skipped file may be recorded for the first time
+                manifest.recordFile(outputPath, ExtractionManifest.describe(archiveEntry), outputFile);
+            }
+            queue.completed(processed);
         } else {
-            try (InputStream inputStream = archiveEntry.getContent().open();
-                    CachingOutputStream outputStream = new CachingOutputStream(outputFile)) {
-                entryProcessor.processStream(archiveEntry.getName(), inputStream, outputStream);
+            extractFile(extraction, archiveEntry, entryName, outputPath, outputFile, processed);
+        }
+    }
+
+    /**
+     * Writes the regular file of {@code archiveEntry} unless the extraction manifest shows it is unchanged. When the
+     * archive stores no CRC-32 for the entry, one is computed from its content, ahead of the write decision if the
+     * manifest could otherwise skip the file, and recorded for the next extraction.
+     */
+    private void extractFile(
+            Extraction extraction,
+            SourceEntry archiveEntry,
+            String entryName,
+            String outputPath,
+            Path outputFile,
+            ExtractionQueue.Action processed)
+            throws IOException {
+        UnarchivingEntryProcessor entryProcessor = extraction.entryProcessor;
+        ExtractionQueue queue = extraction.queue;
+        ExtractionManifest manifest = extraction.manifest;
+        long size = archiveEntry.getContent().size();
+        ExtractionManifest.Record metadata = ExtractionManifest.describe(archiveEntry);
+        byte[] bufferedContent = null;
+        if (manifest != null
+                && size >= 0
+                && size <= PARALLEL_ENTRY_LIMIT
+                && manifest.needsCrc32(outputPath, metadata, outputFile)) {
+            // Entry times may be normalized, so only the content shows whether an entry of the same size changed
+            try (InputStream inputStream = archiveEntry.getContent().open()) {
+                bufferedContent = IOUtils.toByteArray(inputStream);
+            } catch (IOException | RuntimeException e) {
+                entryProcessor.processed(entryName, outputFile);
+                throw e;
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(bufferedContent, 0, bufferedContent.length);
+            metadata = metadata.withCrc32(crc32.getValue());
+        }
+        if (manifest != null && manifest.isUnchanged(outputPath, metadata, outputFile)) {
+            queue.completed(processed);
+            return;
+        }
+        CRC32 crc32 = manifest != null && metadata.crc32() == -1 ? new CRC32() : null;
+        if (queue.isParallel() && size >= 0 && size <= PARALLEL_ENTRY_LIMIT) {
+            // Content is only valid during this callback, so it is read here and written by a worker
+            ByteArrayOutputStream content = new ByteArrayOutputStream((int) size);
+            try (InputStream inputStream = openContent(archiveEntry, bufferedContent, crc32)) {
+                entryProcessor.processStream(archiveEntry.getName(), inputStream, content);
+                IOUtils.consume(inputStream);
+            } catch (IOException | RuntimeException e) {
+                entryProcessor.processed(entryName, outputFile);
+                throw e;
+            }
+            Set<PosixFilePermission> permissions = filePermissions(archiveEntry);
+            long time = archiveEntry.getTime();
+            ExtractionManifest.Record written = crc32 == null ? metadata : metadata.withCrc32(crc32.getValue());
+            queue.submit(
+                    () -> {
+                        writeFile(extraction, outputFile, content::writeTo, permissions, time);
+                        if (manifest != null) {
+                            manifest.recordFile(outputPath, written, outputFile);
+                        }
+                    },
+                    processed);
+        } else {
+            try (InputStream inputStream = openContent(archiveEntry, bufferedContent, crc32)) {
+                writeFile(
+                        extraction,
+                        outputFile,
+                        outputStream -> {
+                            entryProcessor.processStream(archiveEntry.getName(), inputStream, outputStream);
+                            IOUtils.consume(inputStream);
+                        },
+                        filePermissions(archiveEntry),
+                        archiveEntry.getTime());
+                if (manifest != null) {
+                    manifest.recordFile(
+                            outputPath, crc32 == null ? metadata : metadata.withCrc32(crc32.getValue()), outputFile);
+                }
+            } catch (IOException | RuntimeException e) {
+                entryProcessor.processed(entryName, outputFile);
+                throw e;
+            }
+            queue.completed(processed);
+        }
+    }
+
+    /** Opens entry content, or content already read ahead, computing its CRC-32 into {@code crc32} if given. */
+    private static InputStream openContent(SourceEntry archiveEntry, byte[] bufferedContent, CRC32 crc32)
+            throws IOException {
+        InputStream inputStream = bufferedContent != null
+                ? new ByteArrayInputStream(bufferedContent)
+                : archiveEntry.getContent().open();
+        return crc32 == null ? inputStream : new CheckedInputStream(inputStream, crc32);
+    }
+
+    /**
+     * Writes a regular file according to the extraction mode. Permissions are applied to new or changed content, and
+     * incremental extraction also records the entry time so an unchanged file can be skipped next time.
+     */
+    private void writeFile(
+            Extraction extraction,
+            Path outputFile,
+            ContentWriter content,
+            Set<PosixFilePermission> permissions,
+            long time)
+            throws IOException {
+        if (extractionMode == ExtractionMode.COMPARE) {
+            try (CachingOutputStream outputStream = new CachingOutputStream(outputFile)) {
+                content.writeTo(outputStream);
                 outputStream.close();
                 if (outputStream.isModified()) {
-                    setFilePermission(archiveEntry, outputFile);
+                    applyPermissions(extraction, outputFile, permissions);
                 }
-            } finally {
-                entryProcessor.processed(entryName, outputFile);
+            }
+            return;
+        }
+        OpenOption[] options = extractionMode == ExtractionMode.FRESH
+                ? new OpenOption[] {StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE}
+                : new OpenOption[] {
+                    StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE
+                };
+        try (OutputStream outputStream =
+                new BufferedOutputStream(Files.newOutputStream(outputFile, options), WRITE_BUFFER_SIZE)) {
+            content.writeTo(outputStream);
+        }
+        applyPermissions(extraction, outputFile, permissions);
+        if (extractionMode == ExtractionMode.INCREMENTAL && time != -1) {
+            Files.setLastModifiedTime(outputFile, FileTime.fromMillis(time));
+        }
+    }
+
+    private boolean isUnchanged(Path outputFile, SourceEntry archiveEntry) throws IOException {
+        long size = archiveEntry.getContent().size();
+        if (extractionMode != ExtractionMode.INCREMENTAL || archiveEntry.getTime() == -1 || size < 0) {
+            return false;
+        }
+        BasicFileAttributes attributes;
+        try {
+            attributes = Files.readAttributes(outputFile, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+        } catch (NoSuchFileException e) {
+            return false;
+        }
+        return attributes.isRegularFile()
+                && attributes.size() == size
+                && attributes.lastModifiedTime().toMillis() == archiveEntry.getTime();
+    }
+
+    private static void ensureEmpty(Path directory) throws IOException {
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+            if (entries.iterator().hasNext()) {
+                throw new IOException("Output directory " + directory + " is not empty for fresh extraction");
             }
         }
     }
@@ -164,7 +406,41 @@ public final class UnArchiver {
         return path;
     }
 
-    private void setFilePermission(SourceEntry archiveEntry, Path outputFile) throws IOException {
+    private void applyPermissions(Extraction extraction, Path file, Set<PosixFilePermission> permissions)
+            throws IOException {
+        if (deferPermissions) {
+            extraction.deferPermissions(file, permissions);
+        } else {
+            setFilePermissions(file, permissions);
+        }
+    }
+
+    /**
+     * Applies the permissions recorded while extracting, in the order the files were written. Files created by a fresh
+     * extraction that should keep the default permissions of a new file are skipped.
+     */
+    private void applyDeferredPermissions(Extraction extraction) throws IOException {
+        if (extraction.pendingPermissions.isEmpty()) {
+            return;
+        }
+        Set<PosixFilePermission> defaultPermissions = null;
+        if (extractionMode == ExtractionMode.FRESH) {
+            // Every output is new and untouched, so the first file shows the permissions the umask gives them all
+            try {
+                defaultPermissions = Files.getPosixFilePermissions(
+                        extraction.pendingPermissions.get(0).file, LinkOption.NOFOLLOW_LINKS);
+            } catch (UnsupportedOperationException e) {
+                return;
+            }
+        }
+        for (PendingPermissions pending : extraction.pendingPermissions) {
+            if (!pending.permissions.equals(defaultPermissions)) {
+                setFilePermissions(pending.file, pending.permissions);
+            }
+        }
+    }
+
+    private Set<PosixFilePermission> filePermissions(SourceEntry archiveEntry) {
         int mode = archiveEntry.getFileMode();
         //
         // Currently, zip entries produced by plexus-archiver return 0 for the unix mode, so I'm doing something wrong,
@@ -173,16 +449,25 @@ public final class UnArchiver {
         // that are unreadable or unusable, so we'll give files 0644 and directories 0755
         //
         if (mode > 0) {
-            setFilePermissions(outputFile, FileModes.toPermissions(mode));
+            return PERMISSIONS[mode & 0777];
         } else {
             if (archiveEntry.isDirectory()) {
-                setFilePermissions(outputFile, FileModes.toPermissions(0755));
+                return PERMISSIONS[0755];
             } else {
-                setFilePermissions(outputFile, FileModes.toPermissions(0644));
+                return PERMISSIONS[0644];
             }
         }
     }
 
+    @SuppressWarnings("unchecked")
+    private static Set<PosixFilePermission>[] createPermissionTable() {
+        Set<PosixFilePermission>[] table = new Set[01000];
+        for (int mode = 0; mode < table.length; mode++) {
+            table[mode] = Collections.unmodifiableSet(FileModes.toPermissions(mode));
+        }
+        return table;
+    }
+
     private void setFilePermissions(Path file, Set<PosixFilePermission> perms) throws IOException {
         try {
             Files.setPosixFilePermissions(file, perms);
@@ -210,6 +495,67 @@ public final class UnArchiver {
      */
     static class NoopEntryProcessor implements UnarchivingEntryProcessor {}
 
+    /** State of one {@link #unarchive} call, shared by every entry of the archive. */
+    private static final class Extraction {
+
+        private final Path archive;
+        private final Path outputDirectory;
+        private final UnarchivingEntryProcessor entryProcessor;
+        private final ExtractionQueue queue;
+        private final ExtractionManifest manifest;
+        private final Set<String> outputPaths = new HashSet<>();
+        // Written by extraction workers as well as the reading thread
+        private final List<PendingPermissions> pendingPermissions = Collections.synchronizedList(new ArrayList<>());
+        // Directories known to exist, so each is checked or created once per extraction
+        private final Set<Path> directories = new HashSet<>();
+
+        private Extraction(
+                Path archive,
+                Path outputDirectory,
+                UnarchivingEntryProcessor entryProcessor,
+                ExtractionQueue queue,
+                ExtractionManifest manifest) {
+            this.archive = archive;
+            this.outputDirectory = outputDirectory;
+            this.entryProcessor = entryProcessor;
+            this.queue = queue;
+            this.manifest = manifest;
+            directories.add(outputDirectory);
+        }
+
+        private void deferPermissions(Path file, Set<PosixFilePermission> permissions) {
+            pendingPermissions.add(new PendingPermissions(file, permissions));
+        }
+
+        private void createDirectories(Path directory) throws IOException {
+            if (directories.contains(directory)) {
+                return;
+            }
+            Files.createDirectories(directory);
+            // Every ancestor inside the output directory now exists as well
+            Path created = directory;
+            while (created != null && created.startsWith(outputDirectory) && directories.add(created)) {
+                created = created.getParent();
+            }
+        }
+    }
+
+    private static final class PendingPermissions {
+
+        private final Path file;
+        private final Set<PosixFilePermission> permissions;
+
+        private PendingPermissions(Path file, Set<PosixFilePermission> permissions) {
+            this.file = file;
+            this.permissions = permissions;
+        }
+    }
+
+    @FunctionalInterface
+    private interface ContentWriter {
+        void writeTo(OutputStream outputStream) throws IOException;
+    }
+
     public static final class UnArchiverBuilder {
 
         List<String> includes = new ArrayList<>();
@@ -217,6 +563,11 @@ public final class UnArchiver {
         boolean useRoot = true;
         boolean flatten = false;
         boolean dereferenceHardlinks = false;
+        int gzipDecompressionThreads = 1;
+        int extractionThreads = 1;
+        ExtractionMode extractionMode = ExtractionMode.COMPARE;
+        boolean extractionManifest;
+        boolean deferPermissions;
 
         public UnArchiverBuilder includes(String... includes) {
             List<String> i = new ArrayList<>();
@@ -263,6 +614,73 @@ public final class UnArchiver {
             return this;
         }
 
+        /**
+         * Sets the number of workers that inflate concatenated tar.gz members ahead of the tar reader. The default of
+         * one uses the sequential decompressor.
+         */
+        public UnArchiverBuilder gzipDecompressionThreads(int threads) {
+            if (threads < 1 || threads > 256) {
+                throw new IllegalArgumentException("gzip decompression threads must be between 1 and 256");
+            }
+            this.gzipDecompressionThreads = threads;
+            return this;
+        }
+
+        /**
+         * Sets the number of workers that write extracted files. The default of one extracts every entry on the
+         * reading thread. With more workers, regular files of up to 1 MiB are read and processed on the reading thread
+         * and then created, written, and given permissions on a worker, with at most twice the worker count pending.
+         * Directories, links, and larger files are still created on the reading thread, and hard links wait for every
+         * pending write so their targets exist. {@link UnarchivingEntryProcessor#processed(String, Path)} is still
+         * called in archive order on the reading thread.
+         *
+         * @param threads extraction workers
+         */
+        public UnArchiverBuilder extractionThreads(int threads) {
+            if (threads < 1 || threads > 256) {
+                throw new IllegalArgumentException("extraction threads must be between 1 and 256");
+            }
+            this.extractionThreads = threads;
+            return this;
+        }
+
+        /**
+         * Selects how regular files are written over existing output. The default {@link ExtractionMode#COMPARE}
+         * reads each existing file to rewrite only changed content.
+         *
+         * @param extractionMode extraction write policy
+         */
+        public UnArchiverBuilder extractionMode(ExtractionMode extractionMode) {
+            this.extractionMode = requireNonNull(extractionMode);
+            return this;
+        }
+
+        /**
+         * Keeps a manifest of extracted entries in the output directory. A later extraction into the same directory
+         * skips regular files whose archive size, CRC-32, and mode are unchanged and whose output still has the
+         * recorded size and modification time, without reading the output, and deletes outputs of entries that are no
+         * longer extracted. Entries of formats without a stored CRC-32, like tar, are still read to compute one. The
+         * manifest assumes the same entry processor and path settings on every run.
+         *
+         * @param extractionManifest {@code true} to read and write the manifest
+         */
+        public UnArchiverBuilder extractionManifest(boolean extractionManifest) {
+            this.extractionManifest = extractionManifest;
+            return this;
+        }
+
+        /**
+         * Records the permissions of extracted files and applies them in one pass once every entry is written, instead
+         * of after each file. With {@link ExtractionMode#FRESH}, files whose permissions already match those of a new
+         * file are not changed at all. Files written before a failed extraction keep their default permissions.
+         *
+         * @param deferPermissions {@code true} to apply permissions after extraction
+         */
+        public UnArchiverBuilder deferPermissions(boolean deferPermissions) {
+            this.deferPermissions = deferPermissions;
+            return this;
+        }
+
         public UnArchiver build() {
             return new UnArchiver(this);
         }
@@ -7,26 +7,86 @@
  */
 package ca.vanzyl.provisio.archive;
 
+import ca.vanzyl.provisio.archive.zip.RawZipEntryContent;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Deque;
 import java.util.Locale;
 import java.util.TimeZone;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
 import org.apache.commons.compress.archivers.zip.UnixStat;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.io.IOUtils;
 
+/**
+ * Writes ZIP entries, optionally deflating them on concurrent workers.
+ *
+ * <p>With more than one compression thread, entries up to {@link #PARALLEL_ENTRY_LIMIT} bytes are read while their
+ * source callback is active, deflated on workers, and written as raw entries in submission order. At most twice the
+ * worker count is pending. Larger entries first drain the pending entries and then stream sequentially. Each entry is
+ * compressed independently, so output is identical for every parallel worker count.
+ *
+ * <p>Unless recompression is requested, STORED and DEFLATED entries read from another ZIP archive are copied as raw
+ * compressed bytes with their original method, CRC, and sizes.
+ *
+ * <p>Entries matching the stored-entry patterns are written STORED, and in automatic mode so are entries that DEFLATE
+ * does not shrink. Buffered entries are judged by their complete compressed size; streamed entries by deflating a
+ * sample of their first {@link #COMPRESSIBILITY_SAMPLE_SIZE} bytes at the fastest level. A streamed entry is only
+ * stored when its CRC is known or its content can be read twice, because STORED entries need the CRC up front;
+ * otherwise it is deflated.
+ */
 final class ZipArchiveWriter implements ArchiveWriter {
 
+    static final int PARALLEL_ENTRY_LIMIT = 1024 * 1024;
+    static final int COMPRESSIBILITY_SAMPLE_SIZE = 64 * 1024;
+
     private final ZipArchiveOutputStream outputStream;
+    private final Deque<PendingEntry> pending = new ArrayDeque<>();
+    private final ExecutorService executor;
+    private final boolean ownsExecutor;
+    private final DeflaterPool deflaters;
+    private final int maximumPending;
+    private final boolean recompress;
+    private final Selector storedEntries;
+    private final boolean storeIncompressible;
 
-    ZipArchiveWriter(Path archive) throws IOException {
+    ZipArchiveWriter(Path archive, ZipCompressionOptions zipCompression) throws IOException {
         outputStream = new ZipArchiveOutputStream(Files.newOutputStream(archive));
+        recompress = zipCompression.recompress();
+        storedEntries =
+                zipCompression.storedEntries().isEmpty() ? null : new Selector(zipCompression.storedEntries(), null);
+        storeIncompressible = zipCompression.storeIncompressible();
+        if (zipCompression.threads() > 1) {
+            ownsExecutor = zipCompression.executor() == null;
+            executor = ownsExecutor
+                    ? Executors.newFixedThreadPool(
+                            zipCompression.threads(), new CompressionThreadFactory("provisio-zip"))
+                    : zipCompression.executor();
+            deflaters = new DeflaterPool(Deflater.DEFAULT_COMPRESSION);
+            maximumPending = Math.multiplyExact(zipCompression.threads(), 2);
+        } else {
+            ownsExecutor = false;
+            executor = null;
+            deflaters = null;
+            maximumPending = 0;
+        }
     }
 
     @Override
@@ -44,15 +104,223 @@ final class ZipArchiveWriter implements ArchiveWriter {
             archiveEntry.setTime(dosToJavaTime(entry.getTime(), true));
         }
 
+        RawZipEntryContent rawContent = rawContent(entry);
+        if (rawContent != null) {
+            writeRaw(entry.getName(), archiveEntry, rawContent);
+            return;
+        }
+        boolean store =
+                entry.getType() == EntryType.FILE && storedEntries != null && storedEntries.include(entry.getName());
+        if (executor != null && isParallel(entry)) {
+            submit(archiveEntry, bufferedContent(entry), store);
+            return;
+        }
+        drainTo(0);
+        if (entry.getType() == EntryType.FILE) {
+            selectStreamedMethod(archiveEntry, entry.getContent(), store);
+        }
         outputStream.putArchiveEntry(archiveEntry);
-        if (entry.getType() == EntryType.FILE || entry.getType() == EntryType.SYMBOLIC_LINK) {
-            try (InputStream inputStream = content(entry)) {
-                IOUtils.copyLarge(inputStream, outputStream);
-            }
+        if (entry.getType() == EntryType.FILE) {
+            entry.getContent().transferTo(Channels.newChannel(outputStream));
+        } else if (entry.getType() == EntryType.SYMBOLIC_LINK) {
+            outputStream.write(entry.getLinkTarget().getBytes(StandardCharsets.UTF_8));
         }
         outputStream.closeArchiveEntry();
     }
 
+    int pendingEntries() {
+        return pending.size();
+    }
+
+    private RawZipEntryContent rawContent(OutputEntry entry) {
+        if (recompress || entry.getType() != EntryType.FILE || !(entry.getContent() instanceof RawZipEntryContent)) {
+            return null;
+        }
+        RawZipEntryContent content = (RawZipEntryContent) entry.getContent();
+        return content.isRawCopyable() ? content : null;
+    }
+
+    private void writeRaw(String entryName, ZipArchiveEntry archiveEntry, RawZipEntryContent content)
+            throws IOException {
+        archiveEntry.setMethod(content.method());
+        archiveEntry.setSize(content.size());
+        archiveEntry.setCompressedSize(content.compressedSize());
+        archiveEntry.setCrc(content.crc32());
+        if (executor != null && content.compressedSize() <= PARALLEL_ENTRY_LIMIT) {
+            byte[] compressed = new byte[(int) content.compressedSize()];
+            try (InputStream inputStream = content.openRaw()) {
+                int read = IOUtils.read(inputStream, compressed);
+                if (read != compressed.length) {
+                    throw new IOException("Compressed size mismatch for archive entry " + entryName + ": expected "
+                            + compressed.length + ", read " + read);
+                }
+            }
+            // Queued behind pending entries to keep submission order
+            pending.addLast(new PendingEntry(
+                    archiveEntry,
+                    CompletableFuture.completedFuture(new CompressedContent(
+                            content.method(), compressed, compressed.length, content.size(), content.crc32()))));
+            drainTo(maximumPending);
+            return;
+        }
+        drainTo(0);
+        try (InputStream inputStream = content.openRaw()) {
+            outputStream.addRawArchiveEntry(archiveEntry, inputStream);
+        }
+    }
+
+    /** Content of unknown size is streamed, as it cannot be buffered up front. */
+    private boolean isParallel(OutputEntry entry) {
+        if (entry.getType() != EntryType.FILE) {
+            return true;
+        }
+        long size = entry.getContent().size();
+        return size >= 0 && size <= PARALLEL_ENTRY_LIMIT;
+    }
+
+    private byte[] bufferedContent(OutputEntry entry) throws IOException {
+        if (entry.getType() == EntryType.DIRECTORY) {
+            return new byte[0];
+        }
+        if (entry.getType() == EntryType.SYMBOLIC_LINK) {
+            return entry.getLinkTarget().getBytes(StandardCharsets.UTF_8);
+        }
+        long expected = entry.getContent().size();
+        byte[] content = new byte[(int) expected];
+        try (InputStream inputStream = entry.getContent().open()) {
+            long read = IOUtils.read(inputStream, content);
+            if (read == expected && inputStream.read() != -1) {
+                read++;
+            }
+            if (read != expected) {
+                throw new IOException("Content size mismatch for archive entry " + entry.getName() + ": expected "
+                        + expected + ", read " + (read > expected ? "more" : Long.toString(read)));
+            }
+        }
+        return content;
+    }
+
+    private void selectStreamedMethod(ZipArchiveEntry archiveEntry, EntryContent content, boolean store)
+            throws IOException {
+        if (content.size() < 0) {
+            // A stored entry records its size up front
+            return;
+        }
+        boolean crcAvailable = content.crc32() != -1 || content.isRepeatable();
+        if (!store && storeIncompressible && content.isRepeatable()) {
+            store = !isCompressible(content);
+        }
+        if (store && crcAvailable) {
+            archiveEntry.setMethod(ZipEntry.STORED);
+            archiveEntry.setSize(content.size());
+            archiveEntry.setCrc(crc32(content));
+        }
+    }
+
+    private static boolean isCompressible(EntryContent content) throws IOException {
+        byte[] sample = new byte[(int) Math.min(COMPRESSIBILITY_SAMPLE_SIZE, content.size())];
+        int length;
+        try (InputStream inputStream = content.open()) {
+            length = IOUtils.read(inputStream, sample);
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED, true);
+        try {
+            deflater.setInput(sample, 0, length);
+            deflater.finish();
+            byte[] buffer = new byte[length];
+            int compressed = 0;
+            while (!deflater.finished() && compressed < length) {
+                compressed += deflater.deflate(buffer, compressed, length - compressed);
+            }
+            return deflater.finished() && compressed < length;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static long crc32(EntryContent content) throws IOException {
+        if (content.crc32() != -1) {
+            return content.crc32();
+        }
+        CRC32 crc32 = new CRC32();
+        byte[] buffer = new byte[8192];
+        try (InputStream inputStream = content.open()) {
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                crc32.update(buffer, 0, count);
+            }
+        }
+        return crc32.getValue();
+    }
+
+    private void submit(ZipArchiveEntry archiveEntry, byte[] content, boolean store) throws IOException {
+        Future<CompressedContent> future;
+        try {
+            future = executor.submit(() -> compress(content, store));
+        } catch (RejectedExecutionException e) {
+            throw new IOException("ZIP compression executor rejected work", e);
+        }
+        pending.addLast(new PendingEntry(archiveEntry, future));
+        drainTo(maximumPending);
+    }
+
+    private CompressedContent compress(byte[] content, boolean store) {
+        CRC32 crc32 = new CRC32();
+        crc32.update(content);
+        if (store) {
+            return new CompressedContent(ZipEntry.STORED, content, content.length, content.length, crc32.getValue());
+        }
+        Deflater deflater = deflaters.acquire();
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[content.length + (content.length >>> 10) + 64];
+            int length = 0;
+            while (!deflater.finished()) {
+                if (length == buffer.length) {
+                    buffer = Arrays.copyOf(buffer, buffer.length * 2);
+                }
+                length += deflater.deflate(buffer, length, buffer.length - length);
+            }
+            if (storeIncompressible && length >= content.length) {
+                return new CompressedContent(
+                        ZipEntry.STORED, content, content.length, content.length, crc32.getValue());
+            }
+            return new CompressedContent(ZipEntry.DEFLATED, buffer, length, content.length, crc32.getValue());
+        } finally {
+            deflaters.release(deflater);
+        }
+    }
+
+    private void drainTo(int limit) throws IOException {
+        while (pending.size() > limit) {
+            PendingEntry entry = pending.removeFirst();
+            CompressedContent compressed;
+            try {
+                compressed = entry.future.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while compressing ZIP content", e);
+            } catch (ExecutionException e) {
+                throw new IOException("Failed to compress ZIP content", e.getCause());
+            }
+            ZipArchiveEntry archiveEntry = entry.archiveEntry;
+            archiveEntry.setMethod(compressed.method);
+            archiveEntry.setSize(compressed.size);
+            archiveEntry.setCompressedSize(compressed.length);
+            archiveEntry.setCrc(compressed.crc32);
+            outputStream.addRawArchiveEntry(
+                    archiveEntry, new ByteArrayInputStream(compressed.buffer, 0, compressed.length));
+        }
+    }
+
+    private void cancelPending() {
+        for (PendingEntry entry : pending) {
+            entry.future.cancel(true);
+        }
+        pending.clear();
+    }
+
     private int unixMode(OutputEntry entry) {
         int mode = entry.getFileMode();
         if (entry.getType() == EntryType.SYMBOLIC_LINK) {
@@ -62,13 +330,6 @@ final class ZipArchiveWriter implements ArchiveWriter {
         return mode;
     }
 
-    private InputStream content(OutputEntry entry) throws IOException {
-        if (entry.getType() == EntryType.SYMBOLIC_LINK) {
-            return new ByteArrayInputStream(entry.getLinkTarget().getBytes(StandardCharsets.UTF_8));
-        }
-        return entry.getContent().open();
-    }
-
     private static long dosToJavaTime(long time, boolean writeToArchive) {
         Calendar calendar = Calendar.getInstance(TimeZone.getDefault(), Locale.ROOT);
         calendar.setTimeInMillis(time);
@@ -79,6 +340,59 @@ final class ZipArchiveWriter implements ArchiveWriter {
 
     @Override
     public void close() throws IOException {
-        outputStream.close();
+        IOException failure = null;
+        try {
+            drainTo(0);
+        } catch (IOException e) {
+            failure = e;
+        } finally {
+            cancelPending();
+            if (ownsExecutor) {
+                executor.shutdownNow();
+            }
+            if (deflaters != null) {
+                deflaters.close();
+            }
+        }
+        try {
+            outputStream.close();
+        } catch (IOException e) {
+            if (failure == null) {
+                failure = e;
+            } else {
+                failure.addSuppressed(e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    private static final class PendingEntry {
+
+        private final ZipArchiveEntry archiveEntry;
+        private final Future<CompressedContent> future;
+
+        private PendingEntry(ZipArchiveEntry archiveEntry, Future<CompressedContent> future) {
+            this.archiveEntry = archiveEntry;
+            this.future = future;
+        }
+    }
+
+    private static final class CompressedContent {
+
+        private final int method;
+        private final byte[] buffer;
+        private final int length;
+        private final long size;
+        private final long crc32;
+
+        private CompressedContent(int method, byte[] buffer, int length, long size, long crc32) {
+            this.method = method;
+            this.buffer = buffer;
+            this.length = length;
+            this.size = size;
+            this.crc32 = crc32;
+        }
     }
 }
@@ -0,0 +1,69 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+
+/** Immutable bounded ZIP entry compression settings. */
+final class ZipCompressionOptions {
+
+    static final int DEFAULT_THREADS = 1;
+
+    private final int threads;
+    private final ExecutorService executor;
+    private final boolean recompress;
+    private final List<String> storedEntries;
+    private final boolean storeIncompressible;
+
+    ZipCompressionOptions(int threads) {
+        this(threads, null, false, Collections.emptyList(), false);
+    }
+
+    ZipCompressionOptions(
+            int threads,
+            ExecutorService executor,
+            boolean recompress,
+            List<String> storedEntries,
+            boolean storeIncompressible) {
+        if (threads < 1 || threads > 256) {
+            throw new IllegalArgumentException("zip compression threads must be between 1 and 256");
+        }
+        this.threads = threads;
+        this.executor = executor;
+        this.recompress = recompress;
+        this.storedEntries = Collections.unmodifiableList(new ArrayList<>(storedEntries));
+        this.storeIncompressible = storeIncompressible;
+    }
+
+    int threads() {
+        return threads;
+    }
+
+    /** Returns whether entries from ZIP sources are inflated and deflated again instead of copied raw. */
+    boolean recompress() {
+        return recompress;
+    }
+
+    /** Returns glob patterns of entry names written STORED. */
+    List<String> storedEntries() {
+        return storedEntries;
+    }
+
+    /** Returns whether entries that DEFLATE does not shrink are written STORED. */
+    boolean storeIncompressible() {
+        return storeIncompressible;
+    }
+
+    /** Returns the shared caller-owned compression executor, or {@code null} for a private pool per archive. */
+    ExecutorService executor() {
+        return executor;
+    }
+}
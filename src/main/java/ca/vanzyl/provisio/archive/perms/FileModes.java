@@ -71,7 +71,7 @@ public final class FileModes {
         return new String(unix);
     }
 
-    static int fromPermissions(Set<PosixFilePermission> permissions) {
+    public static int fromPermissions(Set<PosixFilePermission> permissions) {
         int mode = 0;
         mode = setIfPresent(mode, permissions, OWNER_READ, 0400);
         mode = setIfPresent(mode, permissions, OWNER_WRITE, 0200);
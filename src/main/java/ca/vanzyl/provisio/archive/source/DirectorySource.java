@@ -8,63 +8,87 @@
 package ca.vanzyl.provisio.archive.source;
 
 import ca.vanzyl.provisio.archive.EntryContents;
-import ca.vanzyl.provisio.archive.Source;
 import ca.vanzyl.provisio.archive.SourceEntry;
 import ca.vanzyl.provisio.archive.perms.FileModes;
 import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystemLoopException;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
 import java.util.List;
-import java.util.stream.Collectors;
-import java.util.stream.Stream;
-import org.codehaus.plexus.util.DirectoryScanner;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Emits the content of directories while walking them. Entries are produced in the natural order of their relative
+ * paths, so each directory is listed, sorted, and read once, and only the listings of the directories being walked
+ * are held in memory. Symbolic links are followed.
+ *
+ * <p>With more than one metadata thread, the attributes of upcoming entries in the current directory are read ahead
+ * on a private pool while earlier entries are consumed. Emission order does not change.
+ */
+public class DirectorySource implements DurableContentSource {
+
+    // Attribute reads queued ahead of the entry being emitted, per metadata thread
+    private static final int PREFETCH_PER_THREAD = 32;
 
-public class DirectorySource implements Source {
     private final Path[] sourceDirectories;
+    private final int metadataThreads;
+    private final ThreadFactory threadFactory;
 
     public DirectorySource(Path... sourceDirectories) {
+        this(1, sourceDirectories);
+    }
+
+    public DirectorySource(int metadataThreads, Path... sourceDirectories) {
+        this(metadataThreads, Executors.defaultThreadFactory(), sourceDirectories);
+    }
+
+    /** Creates a source whose metadata workers are created by {@code threadFactory}. */
+    public DirectorySource(int metadataThreads, ThreadFactory threadFactory, Path... sourceDirectories) {
+        if (metadataThreads < 1 || metadataThreads > 256) {
+            throw new IllegalArgumentException("metadata threads must be between 1 and 256");
+        }
         this.sourceDirectories = sourceDirectories.clone();
+        this.metadataThreads = metadataThreads;
+        this.threadFactory = threadFactory;
     }
 
     @Override
     public void forEachEntry(EntryConsumer consumer) throws IOException {
-        List<SourceEntry> files = new ArrayList<>();
-        for (Path sourceDirectory : sourceDirectories) {
-            String normalizedSourceDirectory =
-                    sourceDirectory.getFileName().toString().replace('\\', '/');
-            DirectoryScanner scanner = new DirectoryScanner();
-            scanner.setBasedir(sourceDirectory.toFile());
-            scanner.setCaseSensitive(true);
-            scanner.scan();
-            //
-            // We need to include the directories to preserve the archiving of empty directories. We also sort in
-            // natural order because filesystem traversal order differs across platforms.
-            //
-            List<String> entryNames = Stream.of(scanner.getIncludedFiles(), scanner.getIncludedDirectories())
-                    .flatMap(Stream::of)
-                    .sorted()
-                    .collect(Collectors.toList());
-            for (String entryName : entryNames) {
-                if (!entryName.isEmpty()) {
-                    Path file = sourceDirectory.resolve(entryName);
-                    String archiveEntryName = normalizedSourceDirectory + "/" + entryName.replace('\\', '/');
-                    files.add(
-                            Files.isDirectory(file)
-                                    ? SourceEntry.directory(
-                                            archiveEntryName,
-                                            FileModes.read(file),
-                                            Files.getLastModifiedTime(file).toMillis())
-                                    : SourceEntry.file(
-                                            archiveEntryName,
-                                            EntryContents.of(file),
-                                            FileModes.read(file),
-                                            Files.getLastModifiedTime(file).toMillis()));
+        ExecutorService executor = null;
+        if (metadataThreads > 1) {
+            executor = Executors.newFixedThreadPool(metadataThreads, threadFactory);
+        }
+        try {
+            for (Path sourceDirectory : sourceDirectories) {
+                String normalizedSourceDirectory =
+                        sourceDirectory.getFileName().toString().replace('\\', '/');
+                boolean posix = sourceDirectory
+                        .getFileSystem()
+                        .supportedFileAttributeViews()
+                        .contains("posix");
+                Walk walk = new Walk(posix, executor, consumer);
+                Object rootKey = Files.readAttributes(sourceDirectory, BasicFileAttributes.class)
+                        .fileKey();
+                if (rootKey != null) {
+                    walk.ancestors.add(rootKey);
                 }
+                walk.walk(sourceDirectory, normalizedSourceDirectory + "/");
+            }
+        } finally {
+            if (executor != null) {
+                executor.shutdownNow();
             }
-        }
-        for (SourceEntry file : files) {
-            consumer.accept(file);
         }
     }
 
@@ -75,4 +99,127 @@ public class DirectorySource implements Source {
     public boolean isDirectory() {
         return true;
     }
+
+    private final class Walk {
+
+        private final boolean posix;
+        private final ExecutorService executor;
+        private final EntryConsumer consumer;
+        private final Set<Object> ancestors = new HashSet<>();
+
+        private Walk(boolean posix, ExecutorService executor, EntryConsumer consumer) {
+            this.posix = posix;
+            this.executor = executor;
+            this.consumer = consumer;
+        }
+
+        private void walk(Path directory, String entryPrefix) throws IOException {
+            List<Path> children = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+                for (Path child : stream) {
+                    children.add(child);
+                }
+            }
+            children.sort(Comparator.comparing(child -> child.getFileName().toString()));
+            //
+            // A directory entry sorts by its name and its content by its name and a separator, which is the order of a
+            // sort of all relative paths. Filesystem listing order differs across platforms. A child's own entry always
+            // precedes its content, so its attributes are read, or awaited, in name order.
+            //
+            List<Visit> visits = new ArrayList<>(children.size() * 2);
+            for (int index = 0; index < children.size(); index++) {
+                String name = children.get(index).getFileName().toString();
+                visits.add(new Visit(name, index, false));
+                visits.add(new Visit(name + "/", index, true));
+            }
+            visits.sort(Comparator.comparing(visit -> visit.key));
+            Attributes attributes = new Attributes(children);
+            for (Visit visit : visits) {
+                Path child = children.get(visit.index);
+                BasicFileAttributes childAttributes = attributes.get(visit.index);
+                if (!visit.descend) {
+                    consumer.accept(entry(entryPrefix + visit.key, child, childAttributes));
+                } else if (childAttributes.isDirectory()) {
+                    Object key = childAttributes.fileKey();
+                    if (key != null && !ancestors.add(key)) {
+                        throw new FileSystemLoopException(child.toString());
+                    }
+                    walk(child, entryPrefix + visit.key);
+                    if (key != null) {
+                        ancestors.remove(key);
+                    }
+                }
+            }
+        }
+
+        private BasicFileAttributes read(Path file) throws IOException {
+            return posix
+                    ? Files.readAttributes(file, PosixFileAttributes.class)
+                    : Files.readAttributes(file, BasicFileAttributes.class);
+        }
+
+        /** Attributes of one directory's children, read on demand or ahead on the metadata pool. */
+        private final class Attributes {
+
+            private final List<Path> children;
+            private final BasicFileAttributes[] read;
+            private final List<Future<BasicFileAttributes>> prefetched = new ArrayList<>();
+
+            private Attributes(List<Path> children) {
+                this.children = children;
+                this.read = new BasicFileAttributes[children.size()];
+            }
+
+            private BasicFileAttributes get(int index) throws IOException {
+                if (read[index] != null) {
+                    return read[index];
+                }
+                if (executor == null) {
+                    return read[index] = read(children.get(index));
+                }
+                int limit = Math.min(children.size(), index + 1 + metadataThreads * PREFETCH_PER_THREAD);
+                while (prefetched.size() < limit) {
+                    Path child = children.get(prefetched.size());
+                    prefetched.add(executor.submit(() -> read(child)));
+                }
+                try {
+                    read[index] = prefetched.get(index).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while reading attributes of " + children.get(index), e);
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    throw cause instanceof IOException
+                            ? (IOException) cause
+                            : new IOException("Failed to read attributes of " + children.get(index), cause);
+                }
+                prefetched.set(index, null);
+                return read[index];
+            }
+        }
+    }
+
+    private static SourceEntry entry(String archiveEntryName, Path file, BasicFileAttributes attributes) {
+        int mode = attributes instanceof PosixFileAttributes
+                ? FileModes.fromPermissions(((PosixFileAttributes) attributes).permissions())
+                : -1;
+        long time = attributes.lastModifiedTime().toMillis();
+        if (attributes.isDirectory()) {
+            return SourceEntry.directory(archiveEntryName, mode, time);
+        }
+        return SourceEntry.file(archiveEntryName, EntryContents.of(file, attributes.size()), mode, time);
+    }
+
+    private static final class Visit {
+
+        private final String key;
+        private final int index;
+        private final boolean descend;
+
+        private Visit(String key, int index, boolean descend) {
+            this.key = key;
+            this.index = index;
+            this.descend = descend;
+        }
+    }
 }
@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive.source;
+
+import ca.vanzyl.provisio.archive.Source;
+
+/**
+ * A source whose entries, and the files their content reads, stay valid after the consumer callback returns. Only
+ * these sources have entries held back so their content can be read ahead while earlier entries are written.
+ */
+public interface DurableContentSource extends Source {}
@@ -8,14 +8,13 @@
 package ca.vanzyl.provisio.archive.source;
 
 import ca.vanzyl.provisio.archive.EntryContents;
-import ca.vanzyl.provisio.archive.Source;
 import ca.vanzyl.provisio.archive.SourceEntry;
 import ca.vanzyl.provisio.archive.perms.FileModes;
 import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 
-public class FileSource implements Source {
+public class FileSource implements DurableContentSource {
 
     private final String archiveEntryName;
     private final Path file;
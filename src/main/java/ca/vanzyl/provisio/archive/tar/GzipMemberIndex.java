@@ -0,0 +1,350 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive.tar;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Random-access index of a tar.gz archive written as independent fixed-size gzip members.
+ *
+ * <p>The index maps each member to its compressed offset and each tar entry name to the uncompressed offset of its
+ * header. It is stored after the content as empty gzip members whose {@code FEXTRA} subfields carry the encoded index,
+ * followed by one fixed-size locator member, so gzip tools decompress the archive to the unchanged tar stream.
+ */
+public final class GzipMemberIndex {
+
+    /** Length of the trailing locator member, which records the offset and length of the index members. */
+    static final int LOCATOR_LENGTH = 42;
+
+    private static final int VERSION = 1;
+    private static final byte SUBFIELD_FIRST = 'P';
+    private static final byte INDEX_SUBFIELD_SECOND = 'X';
+    private static final byte LOCATOR_SUBFIELD_SECOND = 'L';
+    private static final int LOCATOR_DATA_LENGTH = 16;
+    private static final int FEXTRA = 4;
+    private static final int UNKNOWN_OPERATING_SYSTEM = 255;
+    private static final int SUBFIELD_HEADER_LENGTH = 4;
+    private static final int MAXIMUM_PART_LENGTH = 0xffff - SUBFIELD_HEADER_LENGTH;
+    // An empty final fixed-Huffman DEFLATE block, followed by the CRC-32 and size of empty content
+    private static final byte[] EMPTY_MEMBER_BODY = {3, 0, 0, 0, 0, 0, 0, 0, 0, 0};
+
+    private final int chunkSize;
+    private final long uncompressedLength;
+    private final long[] memberOffsets;
+    private final Map<String, Long> entryOffsets;
+
+    /**
+     * Creates an index of members holding {@code chunkSize} uncompressed bytes each, except the last.
+     *
+     * @param memberOffsets compressed offset of every content member
+     * @param entryOffsets uncompressed header offset of every tar entry, keyed by entry name
+     */
+    public GzipMemberIndex(
+            int chunkSize, long uncompressedLength, long[] memberOffsets, Map<String, Long> entryOffsets) {
+        if (chunkSize < 1) {
+            throw new IllegalArgumentException("chunk size must be positive");
+        }
+        this.chunkSize = chunkSize;
+        this.uncompressedLength = uncompressedLength;
+        this.memberOffsets = memberOffsets.clone();
+        this.entryOffsets = Collections.unmodifiableMap(new LinkedHashMap<>(entryOffsets));
+    }
+
+    /**
+     * Reads the member index of {@code archive}.
+     *
+     * @return the index, or {@code null} when the archive does not end with an index locator
+     * @throws IOException if the archive cannot be read or its index is corrupt
+     */
+    public static GzipMemberIndex read(Path archive) throws IOException {
+        try (FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < LOCATOR_LENGTH) {
+                return null;
+            }
+            ByteBuffer locator = readFully(channel, size - LOCATOR_LENGTH, LOCATOR_LENGTH);
+            if (readSubfieldLength(locator, LOCATOR_SUBFIELD_SECOND) != LOCATOR_DATA_LENGTH) {
+                return null;
+            }
+            long indexOffset = locator.getLong();
+            long indexLength = locator.getLong();
+            if (!hasEmptyMemberBody(locator)) {
+                return null;
+            }
+            if (indexOffset < 0
+                    || indexLength < 0
+                    || indexLength > Integer.MAX_VALUE - 8
+                    || indexOffset + indexLength != size - LOCATOR_LENGTH) {
+                throw corrupt();
+            }
+            return decode(readParts(readFully(channel, indexOffset, (int) indexLength)));
+        }
+    }
+
+    public int chunkSize() {
+        return chunkSize;
+    }
+
+    /** Returns the length of the uncompressed tar stream. */
+    public long uncompressedLength() {
+        return uncompressedLength;
+    }
+
+    public int memberCount() {
+        return memberOffsets.length;
+    }
+
+    /** Returns the compressed offset of the member holding uncompressed bytes from {@code member * chunkSize()}. */
+    public long memberOffset(int member) {
+        return memberOffsets[member];
+    }
+
+    /** Returns the indexed tar entry names in archive order. */
+    public Set<String> entryNames() {
+        return entryOffsets.keySet();
+    }
+
+    /**
+     * Returns the uncompressed offset of the header of the named tar entry, including any preceding long-name or PAX
+     * headers, or {@code -1} when the entry is not indexed.
+     */
+    public long entryOffset(String name) {
+        Long offset = entryOffsets.get(requireNonNull(name));
+        return offset == null ? -1 : offset;
+    }
+
+    /**
+     * Opens the uncompressed tar stream of {@code archive} at {@code offset}, inflating only the members from the one
+     * containing that offset onwards.
+     */
+    public InputStream open(Path archive, long offset) throws IOException {
+        if (offset < 0 || offset > uncompressedLength) {
+            throw new IllegalArgumentException("offset must be within the uncompressed archive");
+        }
+        if (offset == uncompressedLength) {
+            return new ByteArrayInputStream(new byte[0]);
+        }
+        long member = offset / chunkSize;
+        if (member >= memberOffsets.length) {
+            throw corrupt();
+        }
+        FileChannel channel = FileChannel.open(archive, StandardOpenOption.READ);
+        try {
+            channel.position(memberOffsets[(int) member]);
+            InputStream input = new GzipCompressorInputStream(Channels.newInputStream(channel), true);
+            IOUtils.skipFully(input, offset - member * chunkSize);
+            return input;
+        } catch (IOException | RuntimeException e) {
+            try {
+                channel.close();
+            } catch (IOException suppressed) {
+                e.addSuppressed(suppressed);
+            }
+            throw e;
+        }
+    }
+
+    /** Writes the index members and the trailing locator member, starting at compressed {@code offset}. */
+    public void writeTo(OutputStream output, long offset) throws IOException {
+        byte[] encoded = encode();
+        long indexLength = 0;
+        int position = 0;
+        do {
+            int length = Math.min(MAXIMUM_PART_LENGTH, encoded.length - position);
+            indexLength += writeMember(output, INDEX_SUBFIELD_SECOND, encoded, position, length);
+            position += length;
+        } while (position < encoded.length);
+
+        byte[] locator = ByteBuffer.allocate(LOCATOR_DATA_LENGTH)
+                .putLong(offset)
+                .putLong(indexLength)
+                .array();
+        writeMember(output, LOCATOR_SUBFIELD_SECOND, locator, 0, locator.length);
+    }
+
+    private byte[] encode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream data = new DataOutputStream(bytes)) {
+            data.writeInt(VERSION);
+            data.writeInt(chunkSize);
+            data.writeLong(uncompressedLength);
+            data.writeInt(memberOffsets.length);
+            for (long memberOffset : memberOffsets) {
+                data.writeLong(memberOffset);
+            }
+            data.writeInt(entryOffsets.size());
+            for (Map.Entry<String, Long> entry : entryOffsets.entrySet()) {
+                byte[] name = entry.getKey().getBytes(StandardCharsets.UTF_8);
+                data.writeInt(name.length);
+                data.write(name);
+                data.writeLong(entry.getValue());
+            }
+        }
+        return bytes.toByteArray();
+    }
+
+    private static GzipMemberIndex decode(byte[] encoded) throws IOException {
+        try (DataInputStream data = new DataInputStream(new ByteArrayInputStream(encoded))) {
+            if (data.readInt() != VERSION) {
+                throw new IOException("Unsupported gzip member index version");
+            }
+            int chunkSize = data.readInt();
+            long uncompressedLength = data.readLong();
+            int memberCount = data.readInt();
+            if (chunkSize < 1 || uncompressedLength < 0 || memberCount < 0 || memberCount > encoded.length / 8) {
+                throw corrupt();
+            }
+            long[] memberOffsets = new long[memberCount];
+            for (int member = 0; member < memberCount; member++) {
+                memberOffsets[member] = data.readLong();
+            }
+            int entryCount = data.readInt();
+            if (entryCount < 0 || entryCount > encoded.length / 12) {
+                throw corrupt();
+            }
+            Map<String, Long> entryOffsets = new LinkedHashMap<>();
+            for (int entry = 0; entry < entryCount; entry++) {
+                int nameLength = data.readInt();
+                if (nameLength < 0 || nameLength > encoded.length) {
+                    throw corrupt();
+                }
+                byte[] name = new byte[nameLength];
+                data.readFully(name);
+                long offset = data.readLong();
+                if (offset < 0 || offset > uncompressedLength) {
+                    throw corrupt();
+                }
+                entryOffsets.put(new String(name, StandardCharsets.UTF_8), offset);
+            }
+            if (data.read() != -1) {
+                throw corrupt();
+            }
+            return new GzipMemberIndex(chunkSize, uncompressedLength, memberOffsets, entryOffsets);
+        } catch (EOFException e) {
+            throw corrupt();
+        }
+    }
+
+    private static byte[] readParts(ByteBuffer members) throws IOException {
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+        while (members.hasRemaining()) {
+            int length = readSubfieldLength(members, INDEX_SUBFIELD_SECOND);
+            if (length < 0 || members.remaining() < length + EMPTY_MEMBER_BODY.length) {
+                throw corrupt();
+            }
+            encoded.write(members.array(), members.arrayOffset() + members.position(), length);
+            ((Buffer) members).position(members.position() + length);
+            if (!hasEmptyMemberBody(members)) {
+                throw corrupt();
+            }
+        }
+        return encoded.toByteArray();
+    }
+
+    /**
+     * Reads an empty member header with a single {@code FEXTRA} subfield of the given identifier, leaving the buffer at
+     * its data, or returns {@code -1} when the header does not match.
+     */
+    private static int readSubfieldLength(ByteBuffer member, byte identifier) {
+        if (member.remaining() < 16
+                || (member.get() & 0xff) != 0x1f
+                || (member.get() & 0xff) != 0x8b
+                || member.get() != 8
+                || member.get() != FEXTRA
+                || member.getInt() != 0
+                || member.get() != 0
+                || (member.get() & 0xff) != UNKNOWN_OPERATING_SYSTEM) {
+            return -1;
+        }
+        int extraLength = readUnsignedShort(member);
+        if (member.get() != SUBFIELD_FIRST || member.get() != identifier) {
+            return -1;
+        }
+        int length = readUnsignedShort(member);
+        return extraLength == length + SUBFIELD_HEADER_LENGTH ? length : -1;
+    }
+
+    private static boolean hasEmptyMemberBody(ByteBuffer member) {
+        if (member.remaining() < EMPTY_MEMBER_BODY.length) {
+            return false;
+        }
+        for (byte expected : EMPTY_MEMBER_BODY) {
+            if (member.get() != expected) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int writeMember(OutputStream output, byte identifier, byte[] data, int offset, int length)
+            throws IOException {
+        byte[] header = {
+            0x1f,
+            (byte) 0x8b,
+            8,
+            FEXTRA,
+            0,
+            0,
+            0,
+            0,
+            0,
+            (byte) UNKNOWN_OPERATING_SYSTEM,
+            (byte) (length + SUBFIELD_HEADER_LENGTH),
+            (byte) ((length + SUBFIELD_HEADER_LENGTH) >>> 8),
+            SUBFIELD_FIRST,
+            identifier,
+            (byte) length,
+            (byte) (length >>> 8)
+        };
+        output.write(header);
+        output.write(data, offset, length);
+        output.write(EMPTY_MEMBER_BODY);
+        return header.length + length + EMPTY_MEMBER_BODY.length;
+    }
+
+    private static int readUnsignedShort(ByteBuffer buffer) {
+        return (buffer.get() & 0xff) | (buffer.get() & 0xff) << 8;
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new EOFException("Truncated gzip member index");
+            }
+        }
+        ((Buffer) buffer).flip();
+        return buffer;
+    }
+
+    private static IOException corrupt() {
+        return new IOException("Corrupt gzip member index");
+    }
+}
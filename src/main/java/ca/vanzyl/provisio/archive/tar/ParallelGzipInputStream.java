@@ -0,0 +1,527 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive.tar;
+
+import static java.util.Objects.requireNonNull;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Decompresses concatenated gzip members concurrently and returns their content in order.
+ *
+ * <p>The reader thread parses each member header and speculatively takes the next gzip header signature as the end of
+ * the member. Workers inflate these candidate members, and a member is accepted only when its DEFLATE stream ends
+ * exactly at the candidate boundary and its CRC-32 and size match the trailer. Otherwise the candidate and every later
+ * speculation are returned to the input and the member is inflated sequentially on the reader thread. Members larger
+ * than the speculation limits, and single-member streams, are also inflated sequentially. At most twice the worker
+ * count of members is pending, and together they may claim at most {@link #MAXIMUM_SPECULATIVE_OUTPUT} in their
+ * trailers. Output buffers grow as content is inflated, so an untrusted trailer size does not allocate up front.
+ */
+final class ParallelGzipInputStream extends InputStream {
+
+    static final int MAXIMUM_SPECULATIVE_MEMBER = 16 * 1024 * 1024;
+    static final int MAXIMUM_SPECULATIVE_OUTPUT = 64 * 1024 * 1024;
+
+    private static final int READ_SIZE = 64 * 1024;
+    private static final int HEADER_LENGTH = 10;
+    private static final int TRAILER_LENGTH = 8;
+    private static final int MINIMUM_DEFLATE_LENGTH = 2;
+    private static final int FHCRC = 0x02;
+    private static final int FEXTRA = 0x04;
+    private static final int FNAME = 0x08;
+    private static final int FCOMMENT = 0x10;
+    private static final int RESERVED_FLAGS = 0xe0;
+
+    private final InputStream input;
+    private final ExecutorService executor;
+    private final int maximumPending;
+    private final long maximumSpeculativeOutput;
+    private final Deque<PendingMember> pending = new ArrayDeque<>();
+
+    private byte[] window = new byte[2 * READ_SIZE];
+    private int windowStart;
+    private int windowEnd;
+    private boolean inputExhausted;
+    private boolean firstMember = true;
+    private boolean endOfMembers;
+    private boolean speculationBlocked;
+
+    private byte[] output = new byte[0];
+    private int outputPosition;
+    private int outputLimit;
+    private Inflater sequential;
+    private final CRC32 sequentialCrc = new CRC32();
+    private long sequentialSize;
+    private byte[] sequentialBuffer;
+    private long pendingOutput;
+    private long maximumPendingOutput;
+    private int speculatedMembers;
+    private boolean closed;
+
+    ParallelGzipInputStream(InputStream input, int threads) {
+        this(input, threads, Executors.defaultThreadFactory());
+    }
+
+    /** Creates a stream whose workers are created by {@code threadFactory}. */
+    ParallelGzipInputStream(InputStream input, int threads, ThreadFactory threadFactory) {
+        this(input, threads, MAXIMUM_SPECULATIVE_OUTPUT, threadFactory);
+    }
+
+    /** Creates a stream whose pending members claim at most {@code maximumSpeculativeOutput} bytes of output. */
+    ParallelGzipInputStream(InputStream input, int threads, long maximumSpeculativeOutput) {
+        this(input, threads, maximumSpeculativeOutput, Executors.defaultThreadFactory());
+    }
+
+    private ParallelGzipInputStream(
+            InputStream input, int threads, long maximumSpeculativeOutput, ThreadFactory threadFactory) {
+        this.input = requireNonNull(input);
+        if (threads < 1 || threads > 256) {
+            throw new IllegalArgumentException("gzip decompression threads must be between 1 and 256");
+        }
+        maximumPending = Math.multiplyExact(threads, 2);
+        this.maximumSpeculativeOutput = Math.min(maximumSpeculativeOutput, MAXIMUM_SPECULATIVE_OUTPUT);
+        executor = Executors.newFixedThreadPool(threads, requireNonNull(threadFactory));
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] single = new byte[1];
+        int count = read(single, 0, 1);
+        return count == -1 ? -1 : single[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] bytes, int offset, int length) throws IOException {
+        requireNonNull(bytes);
+        if (offset < 0 || length < 0 || offset > bytes.length - length) {
+            throw new IndexOutOfBoundsException();
+        }
+        if (closed) {
+            throw new IOException("Stream is closed");
+        }
+        if (length == 0) {
+            return 0;
+        }
+        while (outputPosition == outputLimit) {
+            if (!advance()) {
+                return -1;
+            }
+        }
+        int count = Math.min(length, outputLimit - outputPosition);
+        System.arraycopy(output, outputPosition, bytes, offset, count);
+        outputPosition += count;
+        return count;
+    }
+
+    @Override
+    public int available() {
+        return outputLimit - outputPosition;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        for (PendingMember member : pending) {
+            member.future.cancel(true);
+        }
+        pending.clear();
+        pendingOutput = 0;
+        executor.shutdownNow();
+        if (sequential != null) {
+            sequential.end();
+            sequential = null;
+        }
+        input.close();
+    }
+
+    int speculatedMembers() {
+        return speculatedMembers;
+    }
+
+    int maximumPendingMembers() {
+        return maximumPending;
+    }
+
+    /** Returns the most output claimed by the trailers of pending members at any one time. */
+    long maximumPendingOutput() {
+        return maximumPendingOutput;
+    }
+
+    /** Makes the next decompressed bytes available, returning {@code false} after the last member. */
+    private boolean advance() throws IOException {
+        if (sequential != null) {
+            inflateSequential();
+            return true;
+        }
+        schedule();
+        if (!pending.isEmpty()) {
+            PendingMember member = pending.removeFirst();
+            pendingOutput -= member.claimedSize;
+            InflatedMember inflated = await(member);
+            if (inflated != null) {
+                output = inflated.data;
+                outputPosition = 0;
+                outputLimit = inflated.length;
+                return true;
+            }
+            rewind(member);
+            startSequential();
+            return true;
+        }
+        if (endOfMembers) {
+            return false;
+        }
+        startSequential();
+        return true;
+    }
+
+    private void schedule() throws IOException {
+        while (!speculationBlocked && !endOfMembers && pending.size() < maximumPending) {
+            int headerLength;
+            try {
+                headerLength = parseHeader();
+            } catch (IOException e) {
+                if (pending.isEmpty()) {
+                    throw e;
+                }
+                // The header may follow a false boundary, so it is reported only when reached in order
+                speculationBlocked = true;
+                return;
+            }
+            if (headerLength < 0) {
+                return;
+            }
+            int end = findCandidateEnd(headerLength);
+            if (end < 0) {
+                // The member is inflated sequentially once the speculated members before it are consumed
+                speculationBlocked = true;
+                return;
+            }
+            long claimedSize = trailerSize(end);
+            if (!pending.isEmpty() && pendingOutput + claimedSize > maximumSpeculativeOutput) {
+                // Scheduled again once earlier members are consumed and release their share of the output limit
+                return;
+            }
+            byte[] member = new byte[end];
+            System.arraycopy(window, windowStart, member, 0, end);
+            windowStart += end;
+            boolean first = firstMember;
+            firstMember = false;
+            Future<InflatedMember> future = executor.submit(() -> inflate(member, headerLength));
+            pending.addLast(new PendingMember(member, first, claimedSize, future));
+            pendingOutput += claimedSize;
+            maximumPendingOutput = Math.max(maximumPendingOutput, pendingOutput);
+            speculatedMembers++;
+        }
+    }
+
+    private InflatedMember await(PendingMember member) throws IOException {
+        try {
+            return member.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while decompressing gzip content", e);
+        } catch (ExecutionException e) {
+            throw new IOException("Failed to decompress gzip content", e.getCause());
+        }
+    }
+
+    /** Returns a rejected member and all later speculated members to the unread input. */
+    private void rewind(PendingMember rejected) {
+        int length = rejected.bytes.length + windowEnd - windowStart;
+        for (PendingMember member : pending) {
+            member.future.cancel(true);
+            length += member.bytes.length;
+        }
+        byte[] restored = new byte[Math.max(length + READ_SIZE, window.length)];
+        int position = 0;
+        System.arraycopy(rejected.bytes, 0, restored, position, rejected.bytes.length);
+        position += rejected.bytes.length;
+        for (PendingMember member : pending) {
+            System.arraycopy(member.bytes, 0, restored, position, member.bytes.length);
+            position += member.bytes.length;
+        }
+        System.arraycopy(window, windowStart, restored, position, windowEnd - windowStart);
+        pending.clear();
+        pendingOutput = 0;
+        window = restored;
+        windowStart = 0;
+        windowEnd = length;
+        firstMember = rejected.first;
+        endOfMembers = false;
+        speculationBlocked = false;
+    }
+
+    /**
+     * Returns the header length of the member at the start of the unread input, or {@code -1} after the last member.
+     * The header is validated but not consumed.
+     */
+    private int parseHeader() throws IOException {
+        int available = fill(HEADER_LENGTH);
+        if (available == 0 && !firstMember) {
+            endOfMembers = true;
+            return -1;
+        }
+        if (available < 2 || (window[windowStart] & 0xff) != 0x1f || (window[windowStart + 1] & 0xff) != 0x8b) {
+            throw new IOException(firstMember ? "Input is not in the .gz format" : "Garbage after a valid .gz stream");
+        }
+        if (available < HEADER_LENGTH) {
+            throw new EOFException("Truncated gzip member header");
+        }
+        int method = window[windowStart + 2] & 0xff;
+        if (method != 8) {
+            throw new IOException("Unsupported compression method " + method + " in the .gz header");
+        }
+        int flags = window[windowStart + 3] & 0xff;
+        if ((flags & RESERVED_FLAGS) != 0) {
+            throw new IOException("Reserved flags are set in the .gz header");
+        }
+        int length = HEADER_LENGTH;
+        if ((flags & FEXTRA) != 0) {
+            requireHeaderBytes(length + 2);
+            int extraLength = (window[windowStart + length] & 0xff) | (window[windowStart + length + 1] & 0xff) << 8;
+            length += 2 + extraLength;
+            requireHeaderBytes(length);
+        }
+        if ((flags & FNAME) != 0) {
+            length = skipZeroTerminated(length);
+        }
+        if ((flags & FCOMMENT) != 0) {
+            length = skipZeroTerminated(length);
+        }
+        if ((flags & FHCRC) != 0) {
+            length += 2;
+            requireHeaderBytes(length);
+        }
+        return length;
+    }
+
+    private void requireHeaderBytes(int length) throws IOException {
+        if (fill(length) < length) {
+            throw new EOFException("Truncated gzip member header");
+        }
+    }
+
+    private int skipZeroTerminated(int offset) throws IOException {
+        int position = offset;
+        while (true) {
+            requireHeaderBytes(position + 1);
+            if (window[windowStart + position++] == 0) {
+                return position;
+            }
+        }
+    }
+
+    /**
+     * Returns the length of the member at the start of the unread input when it is followed by a gzip header signature
+     * or the end of input within the speculation limit, or {@code -1}.
+     */
+    private int findCandidateEnd(int headerLength) throws IOException {
+        int minimumEnd = headerLength + MINIMUM_DEFLATE_LENGTH + TRAILER_LENGTH;
+        int searchFrom = minimumEnd;
+        while (true) {
+            int available = windowEnd - windowStart;
+            for (int offset = searchFrom; offset + 2 < available; offset++) {
+                int index = windowStart + offset;
+                if ((window[index] & 0xff) == 0x1f
+                        && (window[index + 1] & 0xff) == 0x8b
+                        && window[index + 2] == 8
+                        && trailerSize(offset) <= maximumSpeculativeOutput) {
+                    return offset;
+                }
+            }
+            searchFrom = Math.max(searchFrom, available - 2);
+            if (available >= MAXIMUM_SPECULATIVE_MEMBER) {
+                return -1;
+            }
+            if (inputExhausted) {
+                return available >= minimumEnd && trailerSize(available) <= maximumSpeculativeOutput ? available : -1;
+            }
+            fill(available + READ_SIZE);
+        }
+    }
+
+    private long trailerSize(int end) {
+        return readLittleEndian(window, windowStart + end - 4);
+    }
+
+    private static InflatedMember inflate(byte[] member, int headerLength) {
+        int dataLength = member.length - headerLength - TRAILER_LENGTH;
+        long expectedCrc = readLittleEndian(member, member.length - TRAILER_LENGTH);
+        int expectedSize = (int) readLittleEndian(member, member.length - 4);
+        // One spare byte detects output beyond the size recorded in the trailer, which is only trusted as a limit
+        int maximumLength = expectedSize + 1;
+        byte[] data = new byte[(int) Math.min(maximumLength, Math.max(READ_SIZE, 4L * dataLength))];
+        Inflater inflater = new Inflater(true);
+        try {
+            inflater.setInput(member, headerLength, dataLength);
+            int length = 0;
+            while (!inflater.finished()) {
+                if (length == data.length) {
+                    data = Arrays.copyOf(data, (int) Math.min(maximumLength, 2L * data.length));
+                }
+                int count = inflater.inflate(data, length, data.length - length);
+                length += count;
+                if (length > expectedSize || count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    return null;
+                }
+            }
+            if (inflater.getRemaining() != 0 || length != expectedSize) {
+                return null;
+            }
+            CRC32 crc32 = new CRC32();
+            crc32.update(data, 0, length);
+            return crc32.getValue() == expectedCrc ? new InflatedMember(data, length) : null;
+        } catch (DataFormatException e) {
+            return null;
+        } finally {
+            inflater.end();
+        }
+    }
+
+    private void startSequential() throws IOException {
+        int headerLength = parseHeader();
+        if (headerLength < 0) {
+            return;
+        }
+        windowStart += headerLength;
+        firstMember = false;
+        sequential = new Inflater(true);
+        sequentialCrc.reset();
+        sequentialSize = 0;
+        if (sequentialBuffer == null) {
+            sequentialBuffer = new byte[READ_SIZE];
+        }
+    }
+
+    private void inflateSequential() throws IOException {
+        while (true) {
+            if (sequential.needsInput()) {
+                // The inflater reads the window in place, so the window is only refilled once it is consumed
+                int available = fill(1);
+                if (available == 0) {
+                    throw new EOFException("Truncated gzip member");
+                }
+                sequential.setInput(window, windowStart, available);
+                windowStart += available;
+            }
+            int count;
+            try {
+                count = sequential.inflate(sequentialBuffer);
+            } catch (DataFormatException e) {
+                throw new IOException("Gzip-compressed data is corrupt", e);
+            }
+            if (count > 0) {
+                sequentialCrc.update(sequentialBuffer, 0, count);
+                sequentialSize += count;
+                output = sequentialBuffer;
+                outputPosition = 0;
+                outputLimit = count;
+                return;
+            }
+            if (sequential.finished()) {
+                finishSequential();
+                return;
+            }
+            if (sequential.needsDictionary()) {
+                throw new IOException("Gzip-compressed data is corrupt");
+            }
+        }
+    }
+
+    private void finishSequential() throws IOException {
+        windowStart -= sequential.getRemaining();
+        sequential.end();
+        sequential = null;
+        speculationBlocked = false;
+        if (fill(TRAILER_LENGTH) < TRAILER_LENGTH) {
+            throw new EOFException("Truncated gzip member trailer");
+        }
+        long expectedCrc = readLittleEndian(window, windowStart);
+        long expectedSize = readLittleEndian(window, windowStart + 4);
+        windowStart += TRAILER_LENGTH;
+        if (expectedCrc != sequentialCrc.getValue()) {
+            throw new IOException("Gzip-compressed data is corrupt");
+        }
+        if (expectedSize != (sequentialSize & 0xffffffffL)) {
+            throw new IOException("Gzip-compressed data is corrupt (uncompressed size mismatch)");
+        }
+    }
+
+    /** Reads input until at least {@code needed} unread bytes are buffered or the input ends. */
+    private int fill(int needed) throws IOException {
+        while (windowEnd - windowStart < needed && !inputExhausted) {
+            if (windowEnd == window.length) {
+                int available = windowEnd - windowStart;
+                byte[] target = available + READ_SIZE <= window.length
+                        ? window
+                        : new byte[Math.max(window.length * 2, available + READ_SIZE)];
+                System.arraycopy(window, windowStart, target, 0, available);
+                window = target;
+                windowStart = 0;
+                windowEnd = available;
+            }
+            int count = input.read(window, windowEnd, window.length - windowEnd);
+            if (count < 0) {
+                inputExhausted = true;
+            } else {
+                windowEnd += count;
+            }
+        }
+        return windowEnd - windowStart;
+    }
+
+    private static long readLittleEndian(byte[] buffer, int offset) {
+        return (buffer[offset] & 0xffL)
+                | (buffer[offset + 1] & 0xffL) << 8
+                | (buffer[offset + 2] & 0xffL) << 16
+                | (buffer[offset + 3] & 0xffL) << 24;
+    }
+
+    private static final class PendingMember {
+
+        private final byte[] bytes;
+        private final boolean first;
+        private final long claimedSize;
+        private final Future<InflatedMember> future;
+
+        private PendingMember(byte[] bytes, boolean first, long claimedSize, Future<InflatedMember> future) {
+            this.bytes = bytes;
+            this.first = first;
+            this.claimedSize = claimedSize;
+            this.future = future;
+        }
+    }
+
+    private static final class InflatedMember {
+
+        private final byte[] data;
+        private final int length;
+
+        private InflatedMember(byte[] data, int length) {
+            this.data = data;
+            this.length = length;
+        }
+    }
+}
@@ -15,6 +15,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.archivers.tar.TarConstants;
@@ -24,15 +31,34 @@ import org.apache.commons.io.input.CloseShieldInputStream;
 public class TarGzArchiveSource implements Source {
 
     private final Path archive;
+    private final int decompressionThreads;
+    private final ThreadFactory threadFactory;
 
     public TarGzArchiveSource(Path archive) {
+        this(archive, 1);
+    }
+
+    /**
+     * Creates a source that inflates concatenated gzip members on {@code decompressionThreads} workers. One thread
+     * keeps the sequential decompressor.
+     */
+    public TarGzArchiveSource(Path archive, int decompressionThreads) {
+        this(archive, decompressionThreads, Executors.defaultThreadFactory());
+    }
+
+    /** Creates a source whose decompression workers are created by {@code threadFactory}. */
+    public TarGzArchiveSource(Path archive, int decompressionThreads, ThreadFactory threadFactory) {
+        if (decompressionThreads < 1 || decompressionThreads > 256) {
+            throw new IllegalArgumentException("gzip decompression threads must be between 1 and 256");
+        }
         this.archive = archive;
+        this.decompressionThreads = decompressionThreads;
+        this.threadFactory = threadFactory;
     }
 
     @Override
     public void forEachEntry(EntryConsumer consumer) throws IOException {
-        try (TarArchiveInputStream inputStream =
-                new TarArchiveInputStream(new GzipCompressorInputStream(Files.newInputStream(archive), true))) {
+        try (TarArchiveInputStream inputStream = new TarArchiveInputStream(decompress(Files.newInputStream(archive)))) {
             TarArchiveEntry archiveEntry;
             while ((archiveEntry = inputStream.getNextTarEntry()) != null) {
                 acceptEntry(inputStream, archiveEntry, consumer);
@@ -40,6 +66,56 @@ public class TarGzArchiveSource implements Source {
         }
     }
 
+    /**
+     * Visits only the entries whose names are in {@code names}, in source order. With a {@link GzipMemberIndex}, each
+     * entry is read by inflating from its own member; otherwise traversal stops once every name has been found. A name
+     * stored more than once is visited at its first occurrence either way, as the index only records the first.
+     */
+    public void forEachEntry(Set<String> names, EntryConsumer consumer) throws IOException {
+        GzipMemberIndex index = GzipMemberIndex.read(archive);
+        if (index != null) {
+            forEachIndexedEntry(index, names, consumer);
+            return;
+        }
+        Set<String> remaining = new HashSet<>(names);
+        try (TarArchiveInputStream inputStream = new TarArchiveInputStream(decompress(Files.newInputStream(archive)))) {
+            TarArchiveEntry archiveEntry;
+            while (!remaining.isEmpty() && (archiveEntry = inputStream.getNextTarEntry()) != null) {
+                if (remaining.remove(archiveEntry.getName())) {
+                    acceptEntry(inputStream, archiveEntry, consumer);
+                }
+            }
+        }
+    }
+
+    private void forEachIndexedEntry(GzipMemberIndex index, Set<String> names, EntryConsumer consumer)
+            throws IOException {
+        List<String> indexed = new ArrayList<>();
+        for (String name : names) {
+            if (index.entryOffset(name) != -1) {
+                indexed.add(name);
+            }
+        }
+        indexed.sort(Comparator.comparingLong(index::entryOffset));
+        for (String name : indexed) {
+            try (TarArchiveInputStream inputStream =
+                    new TarArchiveInputStream(index.open(archive, index.entryOffset(name)))) {
+                TarArchiveEntry archiveEntry = inputStream.getNextTarEntry();
+                if (archiveEntry == null || !archiveEntry.getName().equals(name)) {
+                    throw new IOException("Gzip member index does not match tar entry " + name);
+                }
+                acceptEntry(inputStream, archiveEntry, consumer);
+            }
+        }
+    }
+
+    private InputStream decompress(InputStream compressed) throws IOException {
+        if (decompressionThreads == 1) {
+            return new GzipCompressorInputStream(compressed, true);
+        }
+        return new ParallelGzipInputStream(compressed, decompressionThreads, threadFactory);
+    }
+
     private void acceptEntry(TarArchiveInputStream inputStream, TarArchiveEntry archiveEntry, EntryConsumer consumer)
             throws IOException {
         String name = archiveEntry.getName();
@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2014-2024 Takari, Inc.
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution, and is available at
+ * https://www.eclipse.org/legal/epl-v10.html
+ */
+package ca.vanzyl.provisio.archive.zip;
+
+import ca.vanzyl.provisio.archive.EntryContent;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
+
+/**
+ * ZIP entry content whose compressed bytes can be copied into another ZIP archive without inflating and deflating.
+ *
+ * <p>Raw access follows the same callback lifetime as {@link #open()}.
+ */
+public interface RawZipEntryContent extends EntryContent {
+
+    /** Returns whether the entry is unencrypted, STORED or DEFLATED, and has known sizes and CRC. */
+    boolean isRawCopyable();
+
+    /** Returns the ZIP compression method of the raw bytes. */
+    int method();
+
+    /** Returns the size of the raw compressed bytes. */
+    long compressedSize();
+
+    /** Opens the raw compressed bytes exactly as stored in the source archive. */
+    InputStream openRaw() throws IOException;
+
+    /** Returns the path of the source archive, or {@code null} if it is unknown. */
+    default Path archive() {
+        return null;
+    }
+
+    /** Returns the name of the entry in the source archive, or {@code null} if it is unknown. */
+    default String entryName() {
+        return null;
+    }
+}
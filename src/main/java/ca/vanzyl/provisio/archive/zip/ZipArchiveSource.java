@@ -7,7 +7,6 @@
  */
 package ca.vanzyl.provisio.archive.zip;
 
-import ca.vanzyl.provisio.archive.EntryContent;
 import ca.vanzyl.provisio.archive.Source;
 import ca.vanzyl.provisio.archive.SourceEntry;
 import java.io.FilterInputStream;
@@ -21,8 +20,11 @@ import java.util.Comparator;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
 import java.util.TimeZone;
+import java.util.TreeSet;
 import java.util.zip.CRC32;
+import java.util.zip.ZipEntry;
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 import org.apache.commons.io.IOUtils;
@@ -53,6 +55,21 @@ public class ZipArchiveSource implements Source {
         }
     }
 
+    /** Visits only the entries whose names are in {@code names}, in name order, through the central directory. */
+    public void forEachEntry(Set<String> names, EntryConsumer consumer) throws IOException {
+        try (ZipFile zipFile = ZipFile.builder()
+                .setPath(archive)
+                .setUseUnicodeExtraFields(false)
+                .get()) {
+            for (String name : new TreeSet<>(names)) {
+                ZipArchiveEntry entry = zipFile.getEntry(name);
+                if (entry != null) {
+                    acceptEntry(zipFile, entry, consumer);
+                }
+            }
+        }
+    }
+
     private void acceptEntry(ZipFile zipFile, ZipArchiveEntry archiveEntry, EntryConsumer consumer) throws IOException {
         String name = archiveEntry.getName();
         int mode = archiveEntry.getUnixMode();
@@ -66,7 +83,7 @@ public class ZipArchiveSource implements Source {
             return;
         }
 
-        ZipEntryContent content = new ZipEntryContent(zipFile, archiveEntry);
+        ZipEntryContent content = new ZipEntryContent(archive, zipFile, archiveEntry);
         try {
             if (archiveEntry.isUnixSymlink()) {
                 String target;
@@ -98,13 +115,15 @@ public class ZipArchiveSource implements Source {
         return true;
     }
 
-    private static final class ZipEntryContent implements EntryContent {
+    private static final class ZipEntryContent implements RawZipEntryContent {
 
+        private final Path archive;
         private final ZipFile zipFile;
         private final ZipArchiveEntry archiveEntry;
         private boolean active = true;
 
-        private ZipEntryContent(ZipFile zipFile, ZipArchiveEntry archiveEntry) {
+        private ZipEntryContent(Path archive, ZipFile zipFile, ZipArchiveEntry archiveEntry) {
+            this.archive = archive;
             this.zipFile = zipFile;
             this.archiveEntry = archiveEntry;
         }
@@ -175,6 +194,54 @@ public class ZipArchiveSource implements Source {
             return true;
         }
 
+        @Override
+        public boolean isRawCopyable() {
+            int method = archiveEntry.getMethod();
+            return (method == ZipEntry.STORED || method == ZipEntry.DEFLATED)
+                    && !archiveEntry.getGeneralPurposeBit().usesEncryption()
+                    && archiveEntry.getSize() != -1
+                    && archiveEntry.getCompressedSize() != -1
+                    && archiveEntry.getCrc() != -1;
+        }
+
+        @Override
+        public Path archive() {
+            return archive;
+        }
+
+        @Override
+        public String entryName() {
+            return archiveEntry.getName();
+        }
+
+        @Override
+        public int method() {
+            return archiveEntry.getMethod();
+        }
+
+        @Override
+        public long compressedSize() {
+            return archiveEntry.getCompressedSize();
+        }
+
+        @Override
+        public InputStream openRaw() throws IOException {
+            ensureActive();
+            return new FilterInputStream(zipFile.getRawInputStream(archiveEntry)) {
+                @Override
+                public int read() throws IOException {
+                    ensureActive();
+                    return super.read();
+                }
+
+                @Override
+                public int read(byte[] bytes, int offset, int length) throws IOException {
+                    ensureActive();
+                    return super.read(bytes, offset, length);
+                }
+            };
+        }
+
         private void invalidate() {
             active = false;
         }
@@ -1,5 +1,6 @@
 package ca.vanzyl.provisio.archive;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 
@@ -78,6 +79,81 @@ public class ArchiveScaleTest extends FileSystemAssert {
         assertEquals(MANY_ENTRY_COUNT, files[0]);
     }
 
+    @Test
+    public void nameOrderHoldsSpoolsWithinTheMemoryBudget() throws Exception {
+        Path spooled = getTargetArchive("scale-many-name-order-files.zip").toPath();
+        Path output = getTargetArchive("scale-many-name-order-memory.zip").toPath();
+        Archiver.builder()
+                .entryOrder(EntryOrder.NAME)
+                .build()
+                .archive(spooled, new ManyEntrySource(spooled.getParent(), MANY_ENTRY_COUNT));
+        ManyEntrySource source = new ManyEntrySource(output.getParent(), MANY_ENTRY_COUNT);
+
+        Archiver.builder()
+                .entryOrder(EntryOrder.NAME)
+                .spoolMemory(1_000 * 256)
+                .build()
+                .archive(output, source);
+
+        assertEquals(MANY_ENTRY_COUNT - 1_000, source.spoolsAtTraversalEnd);
+        assertEquals(0, spoolFiles(output.getParent()));
+        assertArrayEquals(Files.readAllBytes(spooled), Files.readAllBytes(output));
+    }
+
+    @Test
+    public void nameOrderCanAppendSpoolsToOneFile() throws Exception {
+        Path spooled =
+                getTargetArchive("scale-many-name-order-entry-files.tar.gz").toPath();
+        Path output =
+                getTargetArchive("scale-many-name-order-append-only.tar.gz").toPath();
+        // Entry content repeats, so spooled entries are also read back by fingerprint workers
+        Archiver.builder()
+                .entryOrder(EntryOrder.NAME)
+                .hardLinkIncludes("**/*.bin")
+                .build()
+                .archive(spooled, new ManyEntrySource(spooled.getParent(), MANY_ENTRY_COUNT));
+        ManyEntrySource source = new ManyEntrySource(output.getParent(), MANY_ENTRY_COUNT);
+
+        Archiver.builder()
+                .entryOrder(EntryOrder.NAME)
+                .hardLinkIncludes("**/*.bin")
+                .fingerprintThreads(4)
+                .appendOnlySpool(true)
+                .build()
+                .archive(output, source);
+
+        assertEquals(1, source.spoolsAtTraversalEnd);
+        assertEquals(0, spoolFiles(output.getParent()));
+        assertArrayEquals(Files.readAllBytes(spooled), Files.readAllBytes(output));
+    }
+
+    @Test
+    public void compressedSpoolsProduceTheSameArchive() throws Exception {
+        Path spooled =
+                getTargetArchive("scale-many-name-order-uncompressed.tar.gz").toPath();
+        Archiver.builder()
+                .entryOrder(EntryOrder.NAME)
+                .hardLinkIncludes("**/*.bin")
+                .build()
+                .archive(spooled, new ManyEntrySource(spooled.getParent(), MANY_ENTRY_COUNT));
+        for (boolean appendOnly : new boolean[] {false, true}) {
+            Path output = getTargetArchive("scale-many-name-order-compressed-" + appendOnly + ".tar.gz")
+                    .toPath();
+
+            Archiver.builder()
+                    .entryOrder(EntryOrder.NAME)
+                    .hardLinkIncludes("**/*.bin")
+                    .fingerprintThreads(4)
+                    .appendOnlySpool(appendOnly)
+                    .compressedSpool(true)
+                    .build()
+                    .archive(output, new ManyEntrySource(output.getParent(), MANY_ENTRY_COUNT));
+
+            assertEquals(0, spoolFiles(output.getParent()));
+            assertArrayEquals(Files.readAllBytes(spooled), Files.readAllBytes(output));
+        }
+    }
+
     private static long checksum(InputStream input) throws IOException {
         try (InputStream stream = input) {
             CRC32 checksum = new CRC32();
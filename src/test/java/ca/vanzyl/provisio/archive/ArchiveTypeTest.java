@@ -1,15 +1,27 @@
 package ca.vanzyl.provisio.archive;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
 
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
 import org.codehaus.plexus.util.Os;
 import org.codehaus.swizzle.stream.ReplaceStringInputStream;
 import org.junit.Assume;
@@ -292,6 +304,26 @@ public abstract class ArchiveTypeTest {
         FileSystemAssert.assertFileMode(outputDirectory, "bin/launcher.py", "-rwxr-xr-x");
     }
 
+    @Test
+    public void deferredPermissionsPreserveFileModes() throws Exception {
+        Assume.assumeFalse(Os.isFamily(Os.FAMILY_WINDOWS));
+
+        File archive = FileSystemAssert.getSourceArchive("launcher-0.93-bin." + getArchiveExtension());
+        for (ExtractionMode mode : Arrays.asList(ExtractionMode.FRESH, ExtractionMode.COMPARE)) {
+            File outputDirectory =
+                    FileSystemAssert.getOutputDirectory("deferred-filemode-" + mode + "-" + getArchiveExtension());
+            UnArchiver.builder()
+                    .deferPermissions(true)
+                    .extractionMode(mode)
+                    .extractionThreads(4)
+                    .build()
+                    .unarchive(archive.toPath(), outputDirectory.toPath());
+            FileSystemAssert.assertFileMode(outputDirectory, "bin/launcher", "-rwxr-xr-x");
+            FileSystemAssert.assertFileMode(outputDirectory, "bin/launcher.py", "-rwxr-xr-x");
+            FileSystemAssert.assertFileMode(outputDirectory, "bin/procname/Linux-x86_64/libprocname.so", "-rw-r--r--");
+        }
+    }
+
     @Test
     public void unarchive() throws Exception {
         File archiveDirectory = FileSystemAssert.getArchiveProject("archive-0");
@@ -315,6 +347,247 @@ public abstract class ArchiveTypeTest {
         FileSystemAssert.assertPresenceAndContentOf(FileSystemAssert.file(outputDirectory, "archive-0/4/4.txt"), "4");
     }
 
+    @Test
+    public void extractSelectedEntriesWithoutUnarchiving() throws Exception {
+        File archiveDirectory = FileSystemAssert.getArchiveProject("archive-0");
+        File archive = FileSystemAssert.getTargetArchive("extract-entries-0." + getArchiveExtension());
+        Archiver.builder().build().archive(archive.toPath(), archiveDirectory.toPath());
+        UnArchiver unArchiver = UnArchiver.builder().build();
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        unArchiver.extractEntry(archive.toPath(), "archive-0/3/3.txt", output);
+        assertEquals("3", output.toString("UTF-8"));
+
+        List<String> names = new ArrayList<>();
+        unArchiver.readEntries(
+                archive.toPath(),
+                new HashSet<>(Arrays.asList("archive-0/4/4.txt", "archive-0/1/", "archive-0/missing.txt")),
+                entry -> names.add(entry.getName()));
+        assertEquals(Arrays.asList("archive-0/1/", "archive-0/4/4.txt"), names);
+
+        assertThrows(
+                IOException.class,
+                () -> unArchiver.extractEntry(archive.toPath(), "archive-0/missing.txt", new ByteArrayOutputStream()));
+        assertThrows(
+                IOException.class,
+                () -> unArchiver.extractEntry(archive.toPath(), "archive-0/1/", new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void parallelExtractionMatchesSequentialExtraction() throws Exception {
+        File sourceDirectory = FileSystemAssert.getOutputDirectory("parallel-extraction-source");
+        Random random = new Random(1234);
+        for (int index = 0; index < 120; index++) {
+            byte[] content = new byte[random.nextInt(8 * 1024)];
+            random.nextBytes(content);
+            Path file = sourceDirectory.toPath().resolve("d" + index % 7).resolve("file-" + index + ".bin");
+            Files.createDirectories(file.getParent());
+            Files.write(file, content);
+        }
+        byte[] large = new byte[UnArchiver.PARALLEL_ENTRY_LIMIT + 1];
+        random.nextBytes(large);
+        Files.write(sourceDirectory.toPath().resolve("large.bin"), large);
+        File archive = FileSystemAssert.getTargetArchive("parallel-extraction." + getArchiveExtension());
+        Archiver.builder().build().archive(archive.toPath(), sourceDirectory.toPath());
+
+        List<String> sequential = new ArrayList<>();
+        File sequentialDirectory = FileSystemAssert.getOutputDirectory("parallel-extraction-sequential");
+        UnArchiver.builder()
+                .build()
+                .unarchive(archive.toPath(), sequentialDirectory.toPath(), processedNames(sequential));
+        List<String> parallel = new ArrayList<>();
+        File parallelDirectory = FileSystemAssert.getOutputDirectory("parallel-extraction-parallel");
+        UnArchiver.builder()
+                .extractionThreads(4)
+                .build()
+                .unarchive(archive.toPath(), parallelDirectory.toPath(), processedNames(parallel));
+
+        assertEquals(sequential, parallel);
+        assertEquals(129, parallel.size());
+        for (String name : parallel) {
+            Path extracted = parallelDirectory.toPath().resolve(name);
+            if (Files.isRegularFile(extracted)) {
+                assertArrayEquals(
+                        name,
+                        Files.readAllBytes(sequentialDirectory.toPath().resolve(name)),
+                        Files.readAllBytes(extracted));
+            }
+        }
+    }
+
+    @Test
+    public void extractionModesControlHowExistingFilesAreWritten() throws Exception {
+        File archiveDirectory = FileSystemAssert.getArchiveProject("archive-0");
+        File archive = FileSystemAssert.getTargetArchive("extraction-modes-0." + getArchiveExtension());
+        Archiver.builder().build().archive(archive.toPath(), archiveDirectory.toPath());
+        File outputDirectory = FileSystemAssert.getOutputDirectory("extraction-modes/" + getArchiveExtension());
+        Path zero = outputDirectory.toPath().resolve("archive-0/0/0.txt");
+        Path one = outputDirectory.toPath().resolve("archive-0/1/1.txt");
+
+        UnArchiver fresh =
+                UnArchiver.builder().extractionMode(ExtractionMode.FRESH).build();
+        fresh.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(zero.toFile(), "0");
+        assertThrows(IOException.class, () -> fresh.unarchive(archive.toPath(), outputDirectory.toPath()));
+
+        Files.write(zero, "changed".getBytes(StandardCharsets.UTF_8));
+        UnArchiver.builder()
+                .extractionMode(ExtractionMode.OVERWRITE)
+                .build()
+                .unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(zero.toFile(), "0");
+
+        UnArchiver incremental =
+                UnArchiver.builder().extractionMode(ExtractionMode.INCREMENTAL).build();
+        incremental.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileTime time = Files.getLastModifiedTime(zero);
+        // Same size and time are trusted without reading content, while a size change is rewritten
+        Files.write(zero, "X".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(zero, time);
+        Files.write(one, "11".getBytes(StandardCharsets.UTF_8));
+        incremental.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(zero.toFile(), "X");
+        FileSystemAssert.assertPresenceAndContentOf(one.toFile(), "1");
+    }
+
+    @Test
+    public void prefetchedContentProducesTheSameArchive() throws Exception {
+        Path sourceDirectory = Paths.get("target/prefetch-source/" + getArchiveExtension() + "/project");
+        Files.createDirectories(sourceDirectory.resolve("nested"));
+        Random random = new Random(19);
+        for (int index = 0; index < 40; index++) {
+            // Includes empty files and files larger than the prefetch budget
+            byte[] content = new byte[index % 10 == 0 ? index * 12 * 1024 : random.nextInt(48 * 1024)];
+            random.nextBytes(content);
+            Files.write(sourceDirectory.resolve((index % 3 == 0 ? "nested/" : "") + "file-" + index), content);
+        }
+        File sequential = FileSystemAssert.getTargetArchive("prefetch-sequential." + getArchiveExtension());
+        File prefetched = FileSystemAssert.getTargetArchive("prefetch-prefetched." + getArchiveExtension());
+
+        Archiver.builder().build().archive(sequential.toPath(), sourceDirectory);
+        Archiver.builder()
+                .contentPrefetchThreads(3)
+                .contentPrefetchBytes(256 * 1024)
+                .build()
+                .archive(prefetched.toPath(), sourceDirectory);
+
+        assertArrayEquals(Files.readAllBytes(sequential.toPath()), Files.readAllBytes(prefetched.toPath()));
+        assertThrows(IllegalArgumentException.class, () -> Archiver.builder().contentPrefetchBytes(1024));
+    }
+
+    @Test
+    public void contentPrefetchDoesNotHoldEntriesOfOtherSources() throws Exception {
+        Path reused = Paths.get("target/prefetch-reused/" + getArchiveExtension() + "/content.txt");
+        Files.createDirectories(reused.getParent());
+        // Every entry reads the same file, which is rewritten once its callback returns
+        Source source = new Source() {
+            @Override
+            public void forEachEntry(EntryConsumer consumer) throws IOException {
+                for (int index = 0; index < 5; index++) {
+                    Files.write(reused, ("content-" + index).getBytes(StandardCharsets.UTF_8));
+                    consumer.accept(SourceEntry.file("entry-" + index + ".txt", EntryContents.of(reused), 0644, 0));
+                }
+            }
+
+            @Override
+            public boolean isDirectory() {
+                return false;
+            }
+
+            @Override
+            public void close() {}
+        };
+        File archive = FileSystemAssert.getTargetArchive("prefetch-reused." + getArchiveExtension());
+        Archiver.builder()
+                .contentPrefetchThreads(2)
+                .entryOrder(EntryOrder.SOURCE)
+                .build()
+                .archive(archive.toPath(), source);
+
+        File outputDirectory = FileSystemAssert.getOutputDirectory("prefetch-reused/" + getArchiveExtension());
+        UnArchiver.builder().build().unarchive(archive.toPath(), outputDirectory.toPath());
+        for (int index = 0; index < 5; index++) {
+            FileSystemAssert.assertPresenceAndContentOf(outputDirectory, "entry-" + index + ".txt", "content-" + index);
+        }
+    }
+
+    @Test
+    public void extractionManifestSkipsUnchangedAndDeletesRemovedEntries() throws Exception {
+        Path sourceDirectory = Paths.get("target/extraction-manifest-source/" + getArchiveExtension());
+        Path project = sourceDirectory.resolve("project");
+        Files.createDirectories(project.resolve("removed"));
+        Files.write(project.resolve("kept.txt"), "kept".getBytes(StandardCharsets.UTF_8));
+        Files.write(project.resolve("changed.txt"), "before".getBytes(StandardCharsets.UTF_8));
+        Files.write(project.resolve("removed/removed.txt"), "removed".getBytes(StandardCharsets.UTF_8));
+        File archive = FileSystemAssert.getTargetArchive("extraction-manifest-0." + getArchiveExtension());
+        Archiver.builder().build().archive(archive.toPath(), project);
+        File outputDirectory = FileSystemAssert.getOutputDirectory("extraction-manifest/" + getArchiveExtension());
+        Path kept = outputDirectory.toPath().resolve("project/kept.txt");
+        Path changed = outputDirectory.toPath().resolve("project/changed.txt");
+        Path removed = outputDirectory.toPath().resolve("project/removed/removed.txt");
+
+        UnArchiver unArchiver = UnArchiver.builder().extractionManifest(true).build();
+        unArchiver.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(removed.toFile(), "removed");
+
+        // Recorded size and time are trusted without reading the extracted file
+        FileTime time = Files.getLastModifiedTime(kept);
+        Files.write(kept, "KEPT".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(kept, time);
+        Files.write(project.resolve("changed.txt"), "after, and longer".getBytes(StandardCharsets.UTF_8));
+        Files.delete(project.resolve("removed/removed.txt"));
+        Files.delete(project.resolve("removed"));
+        Archiver.builder().build().archive(archive.toPath(), project);
+
+        unArchiver.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(kept.toFile(), "KEPT");
+        FileSystemAssert.assertPresenceAndContentOf(changed.toFile(), "after, and longer");
+        assertFalse(Files.exists(removed));
+        assertFalse(Files.exists(removed.getParent()));
+    }
+
+    @Test
+    public void extractionManifestRewritesSameSizeChangeInNormalizedArchive() throws Exception {
+        Path sourceDirectory = Paths.get("target/extraction-manifest-normalized-source/" + getArchiveExtension());
+        Path project = sourceDirectory.resolve("project");
+        Files.createDirectories(project);
+        Files.write(project.resolve("kept.txt"), "kept".getBytes(StandardCharsets.UTF_8));
+        Files.write(project.resolve("changed.txt"), "before".getBytes(StandardCharsets.UTF_8));
+        File archive = FileSystemAssert.getTargetArchive("extraction-manifest-normalized." + getArchiveExtension());
+        Archiver archiver = Archiver.builder()
+                .reproducibility(ReproducibilityPolicy.NORMALIZED)
+                .build();
+        archiver.archive(archive.toPath(), project);
+        File outputDirectory =
+                FileSystemAssert.getOutputDirectory("extraction-manifest-normalized/" + getArchiveExtension());
+        Path kept = outputDirectory.toPath().resolve("project/kept.txt");
+        Path changed = outputDirectory.toPath().resolve("project/changed.txt");
+
+        UnArchiver unArchiver = UnArchiver.builder().extractionManifest(true).build();
+        unArchiver.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(changed.toFile(), "before");
+
+        // Normalized entries share one time, so only the content distinguishes the change
+        FileTime time = Files.getLastModifiedTime(kept);
+        Files.write(kept, "KEPT".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(kept, time);
+        Files.write(project.resolve("changed.txt"), "after!".getBytes(StandardCharsets.UTF_8));
+        archiver.archive(archive.toPath(), project);
+
+        unArchiver.unarchive(archive.toPath(), outputDirectory.toPath());
+        FileSystemAssert.assertPresenceAndContentOf(kept.toFile(), "KEPT");
+        FileSystemAssert.assertPresenceAndContentOf(changed.toFile(), "after!");
+    }
+
+    private static UnarchivingEntryProcessor processedNames(List<String> names) {
+        return new UnarchivingEntryProcessor() {
+            @Override
+            public void processed(String entryName, Path target) {
+                names.add(entryName);
+            }
+        };
+    }
+
     @Test
     public void unarchiveWithEntryProcoessor() throws Exception {
         String name = "archive-with-entry-processor";
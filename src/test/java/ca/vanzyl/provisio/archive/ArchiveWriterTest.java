@@ -1,15 +1,35 @@
 package ca.vanzyl.provisio.archive;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import ca.vanzyl.provisio.archive.tar.GzipMemberIndex;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.compress.archivers.zip.ZipFile;
+import org.apache.commons.io.IOUtils;
 import org.junit.Test;
 
 public class ArchiveWriterTest extends FileSystemAssert {
@@ -84,6 +104,172 @@ public class ArchiveWriterTest extends FileSystemAssert {
         assertSymbolicLink(Sources.zip(archive.toPath()));
     }
 
+    @Test
+    public void parallelZipCompressionIsDeterministicAndPreservesEntries() throws Exception {
+        File sequential = getTargetArchive("writer-zip-sequential.zip");
+        File twoWorkers = getTargetArchive("writer-zip-two-workers.zip");
+        File eightWorkers = getTargetArchive("writer-zip-eight-workers.zip");
+
+        Archiver.builder().build().archive(sequential.toPath(), new MixedSource());
+        Archiver.builder().zipCompressionThreads(2).build().archive(twoWorkers.toPath(), new MixedSource());
+        Archiver.builder().zipCompressionThreads(8).build().archive(eightWorkers.toPath(), new MixedSource());
+
+        assertArrayEquals(Files.readAllBytes(twoWorkers.toPath()), Files.readAllBytes(eightWorkers.toPath()));
+        assertEquals(zipContents(sequential), zipContents(eightWorkers));
+        assertEquals(
+                Arrays.asList("directory/", "directory/small.txt", "large.bin", "link", "medium.bin", "z.txt"),
+                new ArrayList<>(zipContents(eightWorkers).keySet())
+                        .stream().sorted().collect(Collectors.toList()));
+    }
+
+    @Test
+    public void parallelZipCompressionRejectsContentSizeMismatch() throws Exception {
+        File archive = getTargetArchive("writer-zip-size-mismatch.zip");
+        Files.deleteIfExists(archive.toPath());
+        EntryContent shortContent = new EntryContent() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream(new byte[3]);
+            }
+
+            @Override
+            public long size() {
+                return 4;
+            }
+        };
+
+        try {
+            Archiver.builder()
+                    .zipCompressionThreads(2)
+                    .build()
+                    .archive(archive.toPath(), new EntrySource(SourceEntry.file("short.bin", shortContent, 0644, 0)));
+            fail("Expected a content size mismatch");
+        } catch (IOException expected) {
+            assertEquals(
+                    "Content size mismatch for archive entry short.bin: expected 4, read 3", expected.getMessage());
+        }
+        assertFalse(archive.exists());
+    }
+
+    @Test
+    public void parallelZipCompressionStreamsContentOfUnknownSize() throws Exception {
+        File sequential = getTargetArchive("writer-zip-unknown-size-sequential.zip");
+        File parallel = getTargetArchive("writer-zip-unknown-size-parallel.zip");
+        EntryContent unknownSize = new EntryContent() {
+            @Override
+            public InputStream open() {
+                return new ByteArrayInputStream("unknown".getBytes(StandardCharsets.UTF_8));
+            }
+
+            @Override
+            public long size() {
+                return -1;
+            }
+        };
+
+        Source source = new EntrySource(SourceEntry.file("unknown.txt", unknownSize, 0644, 0));
+
+        Archiver.builder().build().archive(sequential.toPath(), source);
+        Archiver.builder().zipCompressionThreads(2).build().archive(parallel.toPath(), source);
+
+        assertEquals(zipContents(sequential), zipContents(parallel));
+        assertTrue(zipContents(parallel).containsKey("unknown.txt"));
+    }
+
+    @Test
+    public void zipToZipCopiesCompressedEntriesRawUnlessRecompressionIsForced() throws Exception {
+        File source = getTargetArchive("writer-raw-source.zip");
+        byte[] stored = "stored content stored content".getBytes(StandardCharsets.UTF_8);
+        byte[] deflated = new byte[8192];
+        Arrays.fill(deflated, (byte) 'd');
+        try (ZipArchiveOutputStream output = new ZipArchiveOutputStream(source)) {
+            ZipArchiveEntry storedEntry = new ZipArchiveEntry("stored.txt");
+            storedEntry.setMethod(ZipEntry.STORED);
+            storedEntry.setSize(stored.length);
+            CRC32 crc32 = new CRC32();
+            crc32.update(stored);
+            storedEntry.setCrc(crc32.getValue());
+            output.putArchiveEntry(storedEntry);
+            output.write(stored);
+            output.closeArchiveEntry();
+            output.setLevel(Deflater.BEST_SPEED);
+            output.putArchiveEntry(new ZipArchiveEntry("deflated.txt"));
+            output.write(deflated);
+            output.closeArchiveEntry();
+        }
+
+        for (int threads : new int[] {1, 4}) {
+            File raw = getTargetArchive("writer-raw-copy-" + threads + ".zip");
+            File recompressed = getTargetArchive("writer-raw-recompressed-" + threads + ".zip");
+            Archiver.builder()
+                    .zipCompressionThreads(threads)
+                    .build()
+                    .archive(raw.toPath(), Sources.zip(source.toPath()));
+            Archiver.builder()
+                    .zipCompressionThreads(threads)
+                    .recompressZipEntries(true)
+                    .build()
+                    .archive(recompressed.toPath(), Sources.zip(source.toPath()));
+
+            try (ZipFile sourceZip = ZipFile.builder().setFile(source).get();
+                    ZipFile rawZip = ZipFile.builder().setFile(raw).get();
+                    ZipFile recompressedZip =
+                            ZipFile.builder().setFile(recompressed).get()) {
+                assertEquals(ZipEntry.STORED, rawZip.getEntry("stored.txt").getMethod());
+                assertEquals(
+                        ZipEntry.DEFLATED,
+                        recompressedZip.getEntry("stored.txt").getMethod());
+                assertEquals(
+                        sourceZip.getEntry("deflated.txt").getCompressedSize(),
+                        rawZip.getEntry("deflated.txt").getCompressedSize());
+                for (ZipFile zip : Arrays.asList(rawZip, recompressedZip)) {
+                    try (InputStream input = zip.getInputStream(zip.getEntry("stored.txt"))) {
+                        assertArrayEquals(stored, IOUtils.toByteArray(input));
+                    }
+                    try (InputStream input = zip.getInputStream(zip.getEntry("deflated.txt"))) {
+                        assertArrayEquals(deflated, IOUtils.toByteArray(input));
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void zipStoredEntryPatternsAndIncompressibleContentAreWrittenStored() throws Exception {
+        for (int threads : new int[] {1, 4}) {
+            File patterns = getTargetArchive("writer-stored-patterns-" + threads + ".zip");
+            File automatic = getTargetArchive("writer-stored-automatic-" + threads + ".zip");
+            Archiver.builder()
+                    .zipCompressionThreads(threads)
+                    .zipStoredEntries("*.bin", "z.txt")
+                    .build()
+                    .archive(patterns.toPath(), new MixedSource());
+            Archiver.builder()
+                    .zipCompressionThreads(threads)
+                    .zipStoreIncompressibleEntries(true)
+                    .build()
+                    .archive(automatic.toPath(), new MixedSource());
+
+            assertEquals(
+                    zipContents(getTargetArchive("writer-zip-reference.zip", new MixedSource())),
+                    zipContents(patterns));
+            assertEquals(zipContents(patterns), zipContents(automatic));
+            try (ZipFile patternZip = ZipFile.builder().setFile(patterns).get();
+                    ZipFile automaticZip = ZipFile.builder().setFile(automatic).get()) {
+                assertEquals(ZipEntry.STORED, patternZip.getEntry("medium.bin").getMethod());
+                assertEquals(ZipEntry.STORED, patternZip.getEntry("large.bin").getMethod());
+                assertEquals(ZipEntry.STORED, patternZip.getEntry("z.txt").getMethod());
+                assertEquals(
+                        ZipEntry.DEFLATED,
+                        patternZip.getEntry("directory/small.txt").getMethod());
+                assertEquals(
+                        ZipEntry.STORED, automaticZip.getEntry("medium.bin").getMethod());
+                assertEquals(
+                        ZipEntry.DEFLATED, automaticZip.getEntry("large.bin").getMethod());
+            }
+        }
+    }
+
     @Test
     public void unsupportedOutputFormatIsRejectedTransactionally() throws Exception {
         File archive = getTargetArchive("writer-unsupported.unknown");
@@ -101,6 +287,72 @@ public class ArchiveWriterTest extends FileSystemAssert {
         assertFalse(archive.exists());
     }
 
+    @Test
+    public void selectiveTarReadsVisitTheFirstEntryWithADuplicatedName() throws Exception {
+        for (boolean memberIndex : new boolean[] {false, true}) {
+            File archive = getTargetArchive("writer-duplicate-name-" + memberIndex + ".tar.gz");
+            try (ArchiveWriter writer = new TarGzArchiveWriter(archive.toPath(), false, gzipCompression(memberIndex))) {
+                writer.write(fileEntry("duplicate.txt", "first"));
+                writer.write(fileEntry("other.txt", "other"));
+                writer.write(fileEntry("duplicate.txt", "last"));
+            }
+            assertEquals(memberIndex, GzipMemberIndex.read(archive.toPath()) != null);
+
+            List<String> visited = new ArrayList<>();
+            UnArchiver unArchiver = UnArchiver.builder().build();
+            unArchiver.readEntries(
+                    archive.toPath(), new HashSet<>(Arrays.asList("duplicate.txt", "other.txt")), entry -> {
+                        try (InputStream input = entry.getContent().open()) {
+                            visited.add(entry.getName() + "="
+                                    + new String(IOUtils.toByteArray(input), StandardCharsets.UTF_8));
+                        }
+                    });
+            assertEquals(Arrays.asList("duplicate.txt=first", "other.txt=other"), visited);
+
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            unArchiver.extractEntry(archive.toPath(), "duplicate.txt", output);
+            assertEquals("first", new String(output.toByteArray(), StandardCharsets.UTF_8));
+        }
+    }
+
+    @Test
+    public void selectiveTarReadsStopOnceEveryNameIsFound() throws Exception {
+        File archive = getTargetArchive("writer-selective-early-stop.tar.gz");
+        byte[] tail = new byte[4 * 1024 * 1024];
+        new Random(10).nextBytes(tail);
+        try (ArchiveWriter writer = new TarGzArchiveWriter(archive.toPath(), false, gzipCompression(false))) {
+            writer.write(fileEntry("first.txt", "first"));
+            writer.write(OutputEntry.from(
+                    "tail.bin",
+                    SourceEntry.file("tail.bin", EntryContents.of(tail), 0644, 0),
+                    0644,
+                    0,
+                    null,
+                    -1,
+                    -1,
+                    null,
+                    null));
+        }
+        // A truncated tail fails any read that reaches it
+        byte[] compressed = Files.readAllBytes(archive.toPath());
+        Files.write(archive.toPath(), Arrays.copyOf(compressed, compressed.length / 2));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        UnArchiver.builder().build().extractEntry(archive.toPath(), "first.txt", output);
+        assertEquals("first", new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    private static GzipCompressionOptions gzipCompression(boolean memberIndex) {
+        return new GzipCompressionOptions(
+                1, Deflater.DEFAULT_COMPRESSION, false, GzipCompressionOptions.DEFAULT_CHUNK_SIZE, null, memberIndex);
+    }
+
+    private static OutputEntry fileEntry(String name, String content) {
+        byte[] bytes = content.getBytes(StandardCharsets.UTF_8);
+        return OutputEntry.from(
+                name, SourceEntry.file(name, EntryContents.of(bytes), 0644, 0), 0644, 0, null, -1, -1, null, null);
+    }
+
     private void assertSymbolicLink(Source source) throws Exception {
         int[] symbolicLinks = {0};
         try (Source closeableSource = source) {
@@ -114,6 +366,80 @@ public class ArchiveWriterTest extends FileSystemAssert {
         assertEquals(1, symbolicLinks[0]);
     }
 
+    private File getTargetArchive(String name, Source source) throws Exception {
+        File archive = getTargetArchive(name);
+        Archiver.builder().build().archive(archive.toPath(), source);
+        return archive;
+    }
+
+    private Map<String, String> zipContents(File archive) throws Exception {
+        Map<String, String> contents = new LinkedHashMap<>();
+        try (Source source = Sources.zip(archive.toPath())) {
+            source.forEachEntry(entry -> {
+                String content;
+                if (entry.isSymbolicLink()) {
+                    content = "-> " + entry.getLinkTarget();
+                } else if (entry.isDirectory()) {
+                    content = "";
+                } else {
+                    try (InputStream input = entry.getContent().open()) {
+                        content = Integer.toHexString(Arrays.hashCode(IOUtils.toByteArray(input)));
+                    }
+                }
+                contents.put(entry.getName(), content + " " + Integer.toOctalString(entry.getFileMode()));
+            });
+        }
+        return contents;
+    }
+
+    private static class MixedSource implements Source {
+
+        @Override
+        public void forEachEntry(EntryConsumer consumer) throws IOException {
+            byte[] medium = new byte[64 * 1024];
+            new Random(314159).nextBytes(medium);
+            byte[] large = new byte[ZipArchiveWriter.PARALLEL_ENTRY_LIMIT + 1];
+            Arrays.fill(large, (byte) 'x');
+            consumer.accept(SourceEntry.directory("directory/", 0755, 0));
+            consumer.accept(SourceEntry.file(
+                    "directory/small.txt", EntryContents.of("small".getBytes(StandardCharsets.UTF_8)), 0644, 0));
+            consumer.accept(SourceEntry.file("medium.bin", EntryContents.of(medium), 0644, 0));
+            consumer.accept(SourceEntry.file("large.bin", EntryContents.of(large), 0644, 0));
+            consumer.accept(SourceEntry.symbolicLink("link", "medium.bin", 0777, 0));
+            consumer.accept(SourceEntry.file("z.txt", EntryContents.of(new byte[0]), 0755, 0));
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {}
+    }
+
+    private static class EntrySource implements Source {
+
+        private final SourceEntry entry;
+
+        private EntrySource(SourceEntry entry) {
+            this.entry = entry;
+        }
+
+        @Override
+        public void forEachEntry(EntryConsumer consumer) throws IOException {
+            consumer.accept(entry);
+        }
+
+        @Override
+        public boolean isDirectory() {
+            return false;
+        }
+
+        @Override
+        public void close() throws IOException {}
+    }
+
     private static class LinkSource implements Source {
 
         @Override
@@ -2,19 +2,27 @@ package ca.vanzyl.provisio.archive;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThrows;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
+import org.apache.commons.codec.digest.MurmurHash3;
 import org.junit.Test;
 
 public class ContentIdentityTest extends FileSystemAssert {
@@ -238,6 +246,226 @@ public class ContentIdentityTest extends FileSystemAssert {
         assertEquals(EntryType.HARD_LINK, entries(archive).get("two/b.jar").getType());
     }
 
+    @Test
+    public void parallelFingerprintingMakesTheSameLinkDecisions() throws Exception {
+        List<SourceEntry> files = new ArrayList<>();
+        for (int index = 0; index < 30; index++) {
+            // Same-size content that only sometimes matches
+            files.add(file("dir-" + (index % 4) + "/file-" + index + ".jar", "content-" + (index % 7)));
+        }
+        Source source = source(files.toArray(new SourceEntry[0]));
+        for (EntryOrder order : EntryOrder.values()) {
+            File sequential = getTargetArchive("identity-fingerprint-sequential-" + order + ".tar.gz");
+            File parallel = getTargetArchive("identity-fingerprint-parallel-" + order + ".tar.gz");
+
+            hardLinkingArchiver(order).archive(sequential.toPath(), source);
+            Archiver.builder()
+                    .entryOrder(order)
+                    .hardLinkIncludes("**/*.jar")
+                    .fingerprintThreads(4)
+                    .build()
+                    .archive(parallel.toPath(), source);
+
+            assertEquals(describe(sequential), describe(parallel));
+        }
+    }
+
+    @Test
+    public void parallelFingerprintingHashesTheBytesWritten() throws Exception {
+        File archive = getTargetArchive("identity-fingerprint-written-bytes.tar.gz");
+        byte[] bytes = new byte[300 * 1024];
+        new Random(20).nextBytes(bytes);
+        int[] openCount = new int[1];
+        EntryContent counted = new EntryContent() {
+            @Override
+            public InputStream open() {
+                openCount[0]++;
+                return new ByteArrayInputStream(bytes);
+            }
+
+            @Override
+            public long size() {
+                return bytes.length;
+            }
+
+            @Override
+            public boolean isRepeatable() {
+                return true;
+            }
+        };
+
+        Archiver.builder()
+                .hardLinkIncludes("**/*.jar")
+                .fingerprintThreads(4)
+                .build()
+                .archive(
+                        archive.toPath(),
+                        source(
+                                SourceEntry.file("one/a.jar", counted, 0644, 0),
+                                SourceEntry.file("two/b.jar", EntryContents.of(bytes), 0644, 0)));
+
+        assertEquals(1, openCount[0]);
+        assertEquals(EntryType.HARD_LINK, entries(archive).get("two/b.jar").getType());
+    }
+
+    @Test
+    public void fastDigestMatchesMurmurHash3() {
+        Random random = new Random(21);
+        for (int length : new int[] {0, 1, 7, 8, 9, 15, 16, 17, 31, 32, 33, 1000, 65_537}) {
+            byte[] bytes = new byte[length];
+            random.nextBytes(bytes);
+            long[] expected = MurmurHash3.hash128x64(bytes);
+
+            Murmur3Digest digest = new Murmur3Digest();
+            for (int offset = 0; offset < length; ) {
+                int count = Math.min(length - offset, 1 + random.nextInt(40));
+                if (count == 1) {
+                    digest.update(bytes[offset]);
+                } else {
+                    digest.update(bytes, offset, count);
+                }
+                offset += count;
+            }
+
+            ByteBuffer actual = ByteBuffer.wrap(digest.digest()).order(ByteOrder.LITTLE_ENDIAN);
+            assertEquals("length " + length, expected[0], actual.getLong());
+            assertEquals("length " + length, expected[1], actual.getLong());
+        }
+    }
+
+    @Test
+    public void fastVerifiedIdentityMakesTheSameLinkDecisions() throws Exception {
+        List<SourceEntry> files = new ArrayList<>();
+        for (int index = 0; index < 30; index++) {
+            files.add(file("dir-" + (index % 4) + "/file-" + index + ".jar", "content-" + (index % 7)));
+        }
+        Source source = source(files.toArray(new SourceEntry[0]));
+        for (EntryOrder order : EntryOrder.values()) {
+            File verified = getTargetArchive("identity-fast-verified-reference-" + order + ".tar.gz");
+            hardLinkingArchiver(order).archive(verified.toPath(), source);
+            for (int threads : new int[] {1, 4}) {
+                File fast = getTargetArchive("identity-fast-verified-" + threads + "-" + order + ".tar.gz");
+
+                Archiver.builder()
+                        .entryOrder(order)
+                        .contentIdentity(ContentIdentityMode.FAST_VERIFIED)
+                        .hardLinkIncludes("**/*.jar")
+                        .fingerprintThreads(threads)
+                        .build()
+                        .archive(fast.toPath(), source);
+
+                assertEquals(describe(verified), describe(fast));
+            }
+        }
+    }
+
+    @Test
+    public void fastVerifiedIdentityComparesReadableCandidatesByteForByte() throws Exception {
+        File archive = getTargetArchive("identity-fast-verified-confirmation.tar.gz");
+        Path directory = getTargetArchive("identity-fast-verified-files").toPath();
+        Files.createDirectories(directory);
+        Path first = Files.write(directory.resolve("first.jar"), "same".getBytes(StandardCharsets.UTF_8));
+        Path second = Files.write(directory.resolve("second.jar"), "same".getBytes(StandardCharsets.UTF_8));
+        Source source = new Source() {
+            @Override
+            public void forEachEntry(EntryConsumer consumer) throws IOException {
+                consumer.accept(SourceEntry.file("one/a.jar", EntryContents.of(first), 0644, 0));
+                // The digest recorded for the first entry no longer describes its bytes
+                Files.write(first, "diff".getBytes(StandardCharsets.UTF_8));
+                consumer.accept(SourceEntry.file("two/b.jar", EntryContents.of(second), 0644, 0));
+            }
+
+            @Override
+            public boolean isDirectory() {
+                return false;
+            }
+
+            @Override
+            public void close() {}
+        };
+
+        Archiver.builder()
+                .contentIdentity(ContentIdentityMode.FAST_VERIFIED)
+                .hardLinkIncludes("**/*.jar")
+                .build()
+                .archive(archive.toPath(), source);
+
+        assertEquals(EntryType.FILE, entries(archive).get("one/a.jar").getType());
+        assertEquals(EntryType.FILE, entries(archive).get("two/b.jar").getType());
+        new TarGzArchiveValidator(archive).assertContentOfEntryInArchive("two/b.jar", "same");
+    }
+
+    @Test
+    public void fastVerifiedIdentityWritesMatchesThatCannotBeComparedByteForByte() throws Exception {
+        Path directory =
+                getTargetArchive("identity-fast-verified-unreadable-files").toPath();
+        Files.createDirectories(directory.resolve("one"));
+        Files.createDirectories(directory.resolve("two"));
+        Files.write(directory.resolve("one/a.jar"), "same".getBytes(StandardCharsets.UTF_8));
+        Files.write(directory.resolve("two/b.jar"), "same".getBytes(StandardCharsets.UTF_8));
+        File zip = getTargetArchive("identity-fast-verified-unreadable.zip");
+        Archiver.builder().build().archive(zip.toPath(), directory);
+        File archive = getTargetArchive("identity-fast-verified-unreadable.tar.gz");
+
+        // ZIP entry content is not retained once its callback returns, so the first entry cannot confirm the match
+        Archiver.builder()
+                .entryOrder(EntryOrder.SOURCE)
+                .contentIdentity(ContentIdentityMode.FAST_VERIFIED)
+                .hardLinkIncludes("**/*.jar")
+                .build()
+                .archive(archive.toPath(), Sources.zip(zip.toPath()));
+
+        String prefix = directory.getFileName() + "/";
+        assertEquals(EntryType.FILE, entries(archive).get(prefix + "one/a.jar").getType());
+        assertEquals(EntryType.FILE, entries(archive).get(prefix + "two/b.jar").getType());
+        new TarGzArchiveValidator(archive).assertContentOfEntryInArchive(prefix + "two/b.jar", "same");
+    }
+
+    @Test
+    public void fingerprintCacheSkipsHashingUnchangedFiles() throws Exception {
+        File archive = getTargetArchive("identity-fingerprint-cache.tar.gz");
+        Path directory = getTargetArchive("identity-fingerprint-cache-files").toPath();
+        Files.createDirectories(directory);
+        Path cache = directory.resolve("fingerprints");
+        Files.deleteIfExists(cache);
+        Path first = Files.write(directory.resolve("first.jar"), "same".getBytes(StandardCharsets.UTF_8));
+        Path second = Files.write(directory.resolve("second.jar"), "diff".getBytes(StandardCharsets.UTF_8));
+        Archiver archiver = Archiver.builder()
+                .hardLinkIncludes("**/*.jar")
+                .fingerprintCache(cache, 10)
+                .build();
+
+        archiver.archive(archive.toPath(), fileSource(first, second));
+        assertEquals(EntryType.FILE, entries(archive).get("two/b.jar").getType());
+        assertEquals(3, Files.readAllLines(cache).size());
+
+        // Same size and modification time: the cached fingerprint is trusted
+        FileTime time = Files.getLastModifiedTime(second);
+        Files.write(second, "same".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(second, time);
+        archiver.archive(archive.toPath(), fileSource(first, second));
+        assertEquals(EntryType.FILE, entries(archive).get("two/b.jar").getType());
+
+        Files.setLastModifiedTime(second, FileTime.fromMillis(time.toMillis() + 10_000));
+        archiver.archive(archive.toPath(), fileSource(first, second));
+        assertEquals(EntryType.HARD_LINK, entries(archive).get("two/b.jar").getType());
+
+        Archiver.builder()
+                .hardLinkIncludes("**/*.jar")
+                .fingerprintCache(cache, 1)
+                .build()
+                .archive(archive.toPath(), fileSource(first, second));
+        assertEquals(2, Files.readAllLines(cache).size());
+        assertThrows(IllegalArgumentException.class, () -> Archiver.builder().fingerprintCache(cache, 0));
+
+        // ZIP entries are keyed through their archive
+        Path zip = directory.resolve("jars.zip");
+        Archiver.builder().build().archive(zip, fileSource(first, second));
+        archiver.archive(archive.toPath(), Sources.zip(zip));
+        assertEquals(EntryType.HARD_LINK, entries(archive).get("two/b.jar").getType());
+        assertTrue(Files.readAllLines(cache).stream().anyMatch(line -> line.contains("zip\t")));
+    }
+
     @Test
     public void mismatchedContentSizeFailsTransactionally() throws Exception {
         File archive = getTargetArchive("identity-size-mismatch.tar.gz");
@@ -264,6 +492,14 @@ public class ContentIdentityTest extends FileSystemAssert {
         assertFalse(archive.exists());
     }
 
+    private static List<String> describe(File archive) throws IOException {
+        List<String> descriptions = new ArrayList<>();
+        for (SourceEntry entry : entryList(archive)) {
+            descriptions.add(entry.getName() + " " + entry.getType() + " " + entry.getLinkTarget());
+        }
+        return descriptions;
+    }
+
     private Archiver hardLinkingArchiver(EntryOrder order) {
         return Archiver.builder().entryOrder(order).hardLinkIncludes("**/*.jar").build();
     }
@@ -280,6 +516,12 @@ public class ContentIdentityTest extends FileSystemAssert {
         return SourceEntry.file(name, EntryContents.of(content.getBytes(StandardCharsets.UTF_8)), 0644, 0);
     }
 
+    private static Source fileSource(Path first, Path second) throws IOException {
+        return source(
+                SourceEntry.file("one/a.jar", EntryContents.of(first), 0644, 0),
+                SourceEntry.file("two/b.jar", EntryContents.of(second), 0644, 0));
+    }
+
     private static Source source(SourceEntry... entries) {
         return new Source() {
             @Override
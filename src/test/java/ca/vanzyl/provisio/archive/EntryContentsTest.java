@@ -7,7 +7,14 @@ import static org.junit.Assert.assertTrue;
 
 import java.io.ByteArrayOutputStream;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
 import java.util.zip.CRC32;
 import org.junit.Test;
 
@@ -33,6 +40,30 @@ public class EntryContentsTest {
         }
     }
 
+    @Test
+    public void fileContentTransfersThroughFileAndStreamChannels() throws Exception {
+        Path directory = Paths.get("target/entry-contents");
+        Files.createDirectories(directory);
+        Random random = new Random(16);
+        for (int size : new int[] {0, 1000, 3 * 1024 * 1024 + 17}) {
+            byte[] bytes = new byte[size];
+            random.nextBytes(bytes);
+            Path file = Files.write(directory.resolve("content-" + size), bytes);
+            EntryContent content = EntryContents.of(file);
+
+            ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+            assertEquals(size, content.transferTo(Channels.newChannel(streamed)));
+            assertArrayEquals(bytes, streamed.toByteArray());
+
+            Path copy = directory.resolve("copy-" + size);
+            try (FileChannel channel = FileChannel.open(
+                    copy, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                assertEquals(size, content.transferTo(channel));
+            }
+            assertArrayEquals(bytes, Files.readAllBytes(copy));
+        }
+    }
+
     private byte[] read(InputStream inputStream) throws Exception {
         ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
         byte[] buffer = new byte[32];
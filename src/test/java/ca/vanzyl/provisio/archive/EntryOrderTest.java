@@ -13,6 +13,7 @@ import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.stream.Stream;
 import org.junit.Test;
@@ -68,6 +69,57 @@ public class EntryOrderTest extends FileSystemAssert {
         }
     }
 
+    @Test
+    public void nameOrderCanCompressSpooledContent() throws Exception {
+        String first = String.join("", Collections.nCopies(50_000, "provisio "));
+        String second = String.join("", Collections.nCopies(50_000, "archiver "));
+        for (boolean appendOnly : new boolean[] {false, true}) {
+            File archive = getTargetArchive("name-order-compressed-spool-" + appendOnly + ".tar.gz");
+            Path directory = archive.toPath().toAbsolutePath().getParent();
+            long[] spoolBytes = {0};
+            Source source = new Source() {
+                @Override
+                public void forEachEntry(EntryConsumer consumer) throws IOException {
+                    consumer.accept(SourceEntry.file("b.txt", content(second), 0644, 1));
+                    consumer.accept(SourceEntry.file("a.txt", content(first), 0644, 1));
+                    try (Stream<Path> files = Files.list(directory)) {
+                        for (Path file : (Iterable<Path>) files::iterator) {
+                            if (file.getFileName().toString().startsWith(".provisio-entry-")) {
+                                spoolBytes[0] += Files.size(file);
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                public boolean isDirectory() {
+                    return false;
+                }
+
+                @Override
+                public void close() {}
+            };
+
+            Archiver.builder()
+                    .entryOrder(EntryOrder.NAME)
+                    .appendOnlySpool(appendOnly)
+                    .compressedSpool(true)
+                    .build()
+                    .archive(archive.toPath(), source);
+
+            assertTrue("spooled " + spoolBytes[0] + " bytes", spoolBytes[0] > 0 && spoolBytes[0] < first.length() / 10);
+            assertEquals(Arrays.asList("a.txt", "b.txt"), entryNames(archive));
+            ArchiveValidator validator = new TarGzArchiveValidator(archive);
+            validator.assertContentOfEntryInArchive("a.txt", first);
+            validator.assertContentOfEntryInArchive("b.txt", second);
+            assertEquals(0, spoolFiles(directory));
+        }
+    }
+
+    private static EntryContent content(String text) {
+        return EntryContents.of(text.getBytes(StandardCharsets.UTF_8));
+    }
+
     private List<String> entryNames(File archive) throws IOException {
         List<String> names = new ArrayList<>();
         Sources.tarGz(archive.toPath()).forEachEntry(entry -> names.add(entry.getName()));
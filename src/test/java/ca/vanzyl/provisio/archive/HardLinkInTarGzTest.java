@@ -128,4 +128,35 @@ public class HardLinkInTarGzTest extends FileSystemAssert {
         assertFileIsNotHardLink(unpackedTarGzDirectoryForHardlinkDeref, "hardlink/6/same.txt");
         assertFileIsNotHardLink(unpackedTarGzDirectoryForHardlinkDeref, "hardlink/7/same.txt");
     }
+
+    @Test
+    public void parallelExtractionCreatesHardLinksAfterTheirTargets() throws Exception {
+        File sourceDirectory = getOutputDirectory("parallel-hardlink-source");
+        ArtifactLayout artifactLayout = new ArtifactLayout(sourceDirectory.toPath());
+        for (int index = 0; index < 40; index++) {
+            artifactLayout.entry(index + "/own.txt", "own " + index);
+        }
+        // Five copies, as the hard-link assertion expects five links to the same file
+        for (int index = 0; index < 40; index += 8) {
+            artifactLayout.entry(index + "/shared.txt", "shared content");
+        }
+        artifactLayout.build();
+        File archive = getTargetArchive("parallel-hardlink.tar.gz");
+        Archiver.builder()
+                .entryOrder(EntryOrder.NAME)
+                .hardLinkIncludes("**/shared.txt")
+                .build()
+                .archive(archive.toPath(), sourceDirectory.toPath());
+
+        File unpacked = getOutputDirectory("parallel-hardlink-unpacked");
+        UnArchiver.builder().extractionThreads(4).build().unarchive(archive.toPath(), unpacked.toPath());
+
+        for (int index = 0; index < 40; index++) {
+            assertPresenceAndContentOf(unpacked, "parallel-hardlink-source/" + index + "/own.txt", "own " + index);
+        }
+        for (int index = 0; index < 40; index += 8) {
+            assertFileIsHardLink(unpacked, "parallel-hardlink-source/" + index + "/shared.txt");
+            assertPresenceAndContentOf(unpacked, "parallel-hardlink-source/" + index + "/shared.txt", "shared content");
+        }
+    }
 }
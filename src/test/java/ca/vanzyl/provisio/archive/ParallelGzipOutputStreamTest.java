@@ -15,9 +15,12 @@ import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.Random;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
 import org.junit.Test;
 
@@ -54,6 +57,140 @@ public class ParallelGzipOutputStreamTest {
         assertEquals(0, gzip.pendingChunks());
     }
 
+    @Test
+    public void steadyStateCompressionRecyclesChunksAndDeflaters() throws Exception {
+        byte[] content = new byte[64 * 200 + 7];
+        new Random(24680).nextBytes(content);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(output, 6, 64, 2);
+
+        for (int offset = 0; offset < content.length; offset += 50) {
+            gzip.write(content, offset, Math.min(50, content.length - offset));
+        }
+        gzip.close();
+
+        assertTrue(gzip.allocatedChunks() <= gzip.maximumPendingChunks() + 1);
+        assertTrue(gzip.createdDeflaters() <= 2);
+        assertArrayEquals(content, decompress(output.toByteArray()));
+        assertArrayEquals(output.toByteArray(), compress(content, 1, 64));
+    }
+
+    @Test
+    public void presetDictionaryWritesOneMemberThatRoundTrips() throws Exception {
+        byte[] content = compressibleContent(64 * 40 + 11);
+
+        byte[] compressed = compressWithDictionary(content, 4, 64);
+
+        assertArrayEquals(content, decompress(compressed));
+        try (GzipCompressorInputStream input =
+                new GzipCompressorInputStream(new ByteArrayInputStream(compressed), false)) {
+            assertArrayEquals(content, readAll(input));
+        }
+    }
+
+    @Test
+    public void presetDictionaryOutputIsDeterministicAndSmallerThanIndependentMembers() throws Exception {
+        byte[] content = compressibleContent(256 * 64);
+
+        byte[] dictionary = compressWithDictionary(content, 1, 256);
+
+        assertArrayEquals(dictionary, compressWithDictionary(content, 8, 256));
+        assertTrue(dictionary.length < compress(content, 1, 256).length);
+    }
+
+    @Test
+    public void presetDictionaryHandlesEmptyAndExactChunkInput() throws Exception {
+        assertArrayEquals(new byte[0], decompress(compressWithDictionary(new byte[0], 2, 32)));
+        byte[] content = compressibleContent(32 * 3);
+        assertArrayEquals(content, decompress(compressWithDictionary(content, 2, 32)));
+    }
+
+    @Test
+    public void combinedCrc32MatchesContiguousCrc32() {
+        byte[] content = new byte[5000];
+        new Random(13579).nextBytes(content);
+        CRC32 first = new CRC32();
+        first.update(content, 0, 1234);
+        CRC32 second = new CRC32();
+        second.update(content, 1234, content.length - 1234);
+        CRC32 whole = new CRC32();
+        whole.update(content);
+
+        assertEquals(
+                whole.getValue(),
+                ParallelGzipOutputStream.combineCrc32(first.getValue(), second.getValue(), content.length - 1234));
+        assertEquals(first.getValue(), ParallelGzipOutputStream.combineCrc32(first.getValue(), 0, 0));
+    }
+
+    @Test
+    public void automaticChunkSizeScalesWithExpectedSizeAndWorkers() {
+        assertEquals(128 * 1024, GzipCompressionOptions.automaticChunkSize(0, 8));
+        assertEquals(128 * 1024, GzipCompressionOptions.automaticChunkSize(1024 * 1024, 4));
+        assertEquals(1024 * 1024, GzipCompressionOptions.automaticChunkSize(16L * 1024 * 1024, 4));
+        assertEquals(2 * 1024 * 1024, GzipCompressionOptions.automaticChunkSize(16L * 1024 * 1024 + 16, 4));
+        assertEquals(8 * 1024 * 1024, GzipCompressionOptions.automaticChunkSize(4L * 1024 * 1024 * 1024, 32));
+        assertEquals(
+                GzipCompressionOptions.automaticChunkSize(64L * 1024 * 1024, 4),
+                new ArchiveOptions(
+                                Archiver.builder().gzipCompressionThreads(4).gzipAutomaticChunkSize(64L * 1024 * 1024))
+                        .gzipCompression()
+                        .chunkSize());
+        assertEquals(
+                64 * 1024,
+                new ArchiveOptions(Archiver.builder().gzipAutomaticChunkSize(1).gzipCompressionChunkSize(64 * 1024))
+                        .gzipCompression()
+                        .chunkSize());
+    }
+
+    @Test
+    public void sharedExecutorIsUsedWithoutBeingShutDown() throws Exception {
+        byte[] content = new byte[64 * 30 + 5];
+        new Random(11223).nextBytes(content);
+        ExecutorService shared = Executors.newFixedThreadPool(2);
+        try {
+            ByteArrayOutputStream first = new ByteArrayOutputStream();
+            ByteArrayOutputStream second = new ByteArrayOutputStream();
+            try (ParallelGzipOutputStream firstGzip = new ParallelGzipOutputStream(first, 6, 64, 4, false, shared);
+                    ParallelGzipOutputStream secondGzip =
+                            new ParallelGzipOutputStream(second, 6, 64, 4, true, shared)) {
+                for (int offset = 0; offset < content.length; offset += 100) {
+                    int length = Math.min(100, content.length - offset);
+                    firstGzip.write(content, offset, length);
+                    secondGzip.write(content, offset, length);
+                }
+            }
+
+            assertFalse(shared.isShutdown());
+            assertArrayEquals(compress(content, 4, 64), first.toByteArray());
+            assertArrayEquals(compressWithDictionary(content, 4, 64), second.toByteArray());
+        } finally {
+            shared.shutdownNow();
+        }
+    }
+
+    @Test
+    public void rejectedSharedExecutorWorkFailsTheStream() throws Exception {
+        ExecutorService shared = Executors.newSingleThreadExecutor();
+        shared.shutdown();
+        TrackingOutputStream output = new TrackingOutputStream();
+        ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(output, 6, 4, 1, false, shared);
+
+        try {
+            gzip.write(new byte[4]);
+            fail("Expected rejected compression work to fail");
+        } catch (IOException expected) {
+            assertEquals("Gzip compression executor rejected work", expected.getMessage());
+        }
+        try {
+            gzip.write(1);
+            fail("Expected a failed stream to reject writes");
+        } catch (IOException expected) {
+            assertEquals("Gzip compression has failed", expected.getMessage());
+        }
+        gzip.close();
+        assertTrue(output.closed);
+    }
+
     @Test
     public void submissionAppliesBackpressureAtThePendingChunkLimit() throws Exception {
         CountDownLatch compressorStarted = new CountDownLatch(1);
@@ -199,6 +336,15 @@ public class ParallelGzipOutputStreamTest {
         assertInvalid(() -> new ParallelGzipOutputStream(new ByteArrayOutputStream(), 10, 1, 1));
         assertInvalid(() -> Archiver.builder().gzipCompressionThreads(0));
         assertInvalid(() -> Archiver.builder().gzipCompressionLevel(10));
+        assertInvalid(() -> Archiver.builder().gzipCompressionChunkSize(32 * 1024 - 1));
+        assertInvalid(() -> Archiver.builder().gzipCompressionChunkSize(64 * 1024 * 1024 + 1));
+        assertInvalid(() -> Archiver.builder().gzipAutomaticChunkSize(-1));
+        try {
+            Archiver.builder().compressionExecutor(null);
+            fail("Expected a null compression executor to fail");
+        } catch (NullPointerException expected) {
+            // Expected.
+        }
 
         ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(new ByteArrayOutputStream(), 6, 8, 1);
         gzip.close();
@@ -224,14 +370,38 @@ public class ParallelGzipOutputStreamTest {
         return output.toByteArray();
     }
 
-    private byte[] decompress(byte[] content) throws IOException {
+    private byte[] compressWithDictionary(byte[] content, int threads, int chunkSize) throws IOException {
         ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (ParallelGzipOutputStream gzip = new ParallelGzipOutputStream(output, 6, chunkSize, threads, true)) {
+            gzip.write(content);
+        }
+        return output.toByteArray();
+    }
+
+    private byte[] compressibleContent(int length) {
+        // Repeats across chunk boundaries so a preset dictionary can reference the previous chunk
+        Random random = new Random(97531);
+        byte[] phrase = new byte[200];
+        random.nextBytes(phrase);
+        byte[] content = new byte[length];
+        for (int index = 0; index < length; index++) {
+            content[index] = index % 997 == 0 ? (byte) random.nextInt() : phrase[index % phrase.length];
+        }
+        return content;
+    }
+
+    private byte[] decompress(byte[] content) throws IOException {
         try (InputStream input = new GzipCompressorInputStream(new ByteArrayInputStream(content), true)) {
-            byte[] buffer = new byte[256];
-            int count;
-            while ((count = input.read(buffer)) != -1) {
-                output.write(buffer, 0, count);
-            }
+            return readAll(input);
+        }
+    }
+
+    private byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[256];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
         }
         return output.toByteArray();
     }
@@ -2,6 +2,7 @@ package ca.vanzyl.provisio.archive;
 
 import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.fail;
 
 import java.io.File;
@@ -10,11 +11,16 @@ import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Random;
 import java.util.TimeZone;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
 import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
 import org.apache.commons.compress.compressors.gzip.GzipCompressorInputStream;
@@ -64,6 +70,67 @@ public class ReproducibilityPolicyTest extends FileSystemAssert {
         new TarGzArchiveValidator(parallel).assertSizeOfEntryInArchive("large.bin", content.length);
     }
 
+    @Test
+    public void configuredGzipChunkSizeIsByteIdenticalAcrossCompressionWorkerCounts() throws Exception {
+        byte[] content = new byte[1024 * 1024 + 1024];
+        new Random(13579).nextBytes(content);
+        File serial = getTargetArchive("reproducible-chunk-serial.tar.gz");
+        File parallel = getTargetArchive("reproducible-chunk-parallel.tar.gz");
+        File automatic = getTargetArchive("reproducible-chunk-automatic.tar.gz");
+
+        createNormalized(
+                serial, content, Archiver.builder().gzipCompressionThreads(1).gzipCompressionChunkSize(64 * 1024));
+        createNormalized(
+                parallel, content, Archiver.builder().gzipCompressionThreads(4).gzipCompressionChunkSize(64 * 1024));
+        createNormalized(
+                automatic,
+                content,
+                Archiver.builder().gzipCompressionThreads(4).gzipAutomaticChunkSize(content.length));
+
+        assertArrayEquals(Files.readAllBytes(serial.toPath()), Files.readAllBytes(parallel.toPath()));
+        new TarGzArchiveValidator(automatic).assertSizeOfEntryInArchive("large.bin", content.length);
+    }
+
+    @Test
+    public void concurrentArchivesOnASharedCompressionExecutorMatchPrivatePools() throws Exception {
+        byte[] content = new byte[1024 * 1024 + 1024];
+        new Random(97531).nextBytes(content);
+        File reference = getTargetArchive("reproducible-private-pool.tar.gz");
+        createNormalized(reference, content, 4);
+        ExecutorService shared = Executors.newFixedThreadPool(2);
+        try {
+            Archiver archiver = Archiver.builder()
+                    .reproducibility(ReproducibilityPolicy.NORMALIZED)
+                    .entryOrder(EntryOrder.NAME)
+                    .gzipCompressionThreads(4)
+                    .compressionExecutor(shared)
+                    .build();
+            List<Future<File>> archives = new ArrayList<>();
+            ExecutorService callers = Executors.newFixedThreadPool(3);
+            try {
+                for (int index = 0; index < 3; index++) {
+                    File archive = getTargetArchive("reproducible-shared-pool-" + index + ".tar.gz");
+                    archives.add(callers.submit(() -> {
+                        archiver.archive(
+                                archive.toPath(),
+                                singleEntrySource(SourceEntry.file("large.bin", EntryContents.of(content), 0644, 0)));
+                        return archive;
+                    }));
+                }
+                for (Future<File> archive : archives) {
+                    assertArrayEquals(
+                            Files.readAllBytes(reference.toPath()),
+                            Files.readAllBytes(archive.get().toPath()));
+                }
+            } finally {
+                callers.shutdownNow();
+            }
+            assertFalse(shared.isShutdown());
+        } finally {
+            shared.shutdownNow();
+        }
+    }
+
     @Test
     public void normalizedSourceOrderedDirectoryIsByteIdenticalAcrossCreationOrderAndMetadata() throws Exception {
         Path firstRoot =
@@ -156,10 +223,12 @@ public class ReproducibilityPolicyTest extends FileSystemAssert {
     }
 
     private void createNormalized(File archive, byte[] content, int compressionThreads) throws Exception {
-        Archiver.builder()
-                .reproducibility(ReproducibilityPolicy.NORMALIZED)
+        createNormalized(archive, content, Archiver.builder().gzipCompressionThreads(compressionThreads));
+    }
+
+    private void createNormalized(File archive, byte[] content, Archiver.ArchiverBuilder builder) throws Exception {
+        builder.reproducibility(ReproducibilityPolicy.NORMALIZED)
                 .entryOrder(EntryOrder.NAME)
-                .gzipCompressionThreads(compressionThreads)
                 .build()
                 .archive(
                         archive.toPath(),
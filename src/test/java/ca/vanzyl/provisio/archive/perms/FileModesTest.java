@@ -1,7 +1,10 @@
 package ca.vanzyl.provisio.archive.perms;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
 
+import java.nio.file.attribute.PosixFilePermission;
+import java.util.Set;
 import org.junit.Test;
 
 public class FileModesTest {
@@ -18,6 +21,15 @@ public class FileModesTest {
         assertEquals(FileModes.toPermissions(0755), FileModes.toPermissions(FileModes.EXECUTABLE_FILE));
     }
 
+    @Test
+    public void permissionSetsAreNewAndModifiable() {
+        Set<PosixFilePermission> permissions = FileModes.toPermissions(0644);
+        assertNotSame(permissions, FileModes.toPermissions(0644));
+        permissions.add(PosixFilePermission.OWNER_EXECUTE);
+        assertEquals(0744, FileModes.fromPermissions(permissions));
+        assertEquals(0644, FileModes.fromPermissions(FileModes.toPermissions(0644)));
+    }
+
     @Test
     public void unixRenderingPreservesPermissionPositions() {
         assertEquals("-rwxr-xr-x", FileModes.toUnix(0755));
@@ -0,0 +1,120 @@
+package ca.vanzyl.provisio.archive.source;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertThrows;
+
+import ca.vanzyl.provisio.archive.SourceEntry;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystemLoopException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.codehaus.plexus.util.FileUtils;
+import org.codehaus.plexus.util.Os;
+import org.junit.Assume;
+import org.junit.Test;
+
+public class DirectorySourceTest {
+
+    @Test
+    public void entriesAreEmittedInRelativePathOrder() throws Exception {
+        Path root = directory("ordered");
+        Files.createDirectories(root.resolve("a/b"));
+        Files.createDirectories(root.resolve("empty"));
+        write(root.resolve("a/b/c.txt"), "c");
+        write(root.resolve("a-c.txt"), "a-c");
+        write(root.resolve("a/z.txt"), "z");
+        write(root.resolve("B.txt"), "B");
+
+        List<String> names = new ArrayList<>();
+        try (DirectorySource source = new DirectorySource(root)) {
+            source.forEachEntry(entry -> names.add(entry.getName()));
+        }
+
+        List<String> sorted = new ArrayList<>(names);
+        sorted.sort(null);
+        assertEquals(sorted, names);
+        assertEquals(
+                Arrays.asList(
+                        "ordered/B.txt",
+                        "ordered/a",
+                        "ordered/a-c.txt",
+                        "ordered/a/b",
+                        "ordered/a/b/c.txt",
+                        "ordered/a/z.txt",
+                        "ordered/empty"),
+                names);
+    }
+
+    @Test
+    public void entriesCarryAttributesReadDuringTheWalk() throws Exception {
+        Assume.assumeFalse(Os.isFamily(Os.FAMILY_WINDOWS));
+        Path root = directory("attributes");
+        Path script = root.resolve("run.sh");
+        write(script, "#!/bin/sh");
+        Files.setPosixFilePermissions(script, PosixFilePermissions.fromString("rwxr-x---"));
+
+        List<SourceEntry> entries = new ArrayList<>();
+        try (DirectorySource source = new DirectorySource(root)) {
+            source.forEachEntry(entries::add);
+        }
+
+        assertEquals(1, entries.size());
+        SourceEntry entry = entries.get(0);
+        assertEquals(0750, entry.getFileMode());
+        assertEquals(9, entry.getContent().size());
+        assertEquals(Files.getLastModifiedTime(script).toMillis(), entry.getTime());
+    }
+
+    @Test
+    public void prefetchedAttributesKeepEntriesAndOrder() throws Exception {
+        Path root = directory("prefetch");
+        for (int directory = 0; directory < 5; directory++) {
+            Files.createDirectories(root.resolve("d" + directory + "/nested"));
+            for (int file = 0; file < 150; file++) {
+                write(root.resolve("d" + directory + "/" + (file % 2 == 0 ? "" : "nested/") + "f" + file), "x" + file);
+            }
+        }
+
+        assertEquals(describe(new DirectorySource(root)), describe(new DirectorySource(4, root)));
+        assertThrows(IllegalArgumentException.class, () -> new DirectorySource(0, root));
+    }
+
+    @Test
+    public void symbolicLinkLoopsAreRejected() throws Exception {
+        Assume.assumeFalse(Os.isFamily(Os.FAMILY_WINDOWS));
+        Path root = directory("loop");
+        Files.createDirectories(root.resolve("nested"));
+        Files.createSymbolicLink(root.resolve("nested/parent"), Paths.get(".."));
+
+        try (DirectorySource source = new DirectorySource(root)) {
+            assertThrows(FileSystemLoopException.class, () -> source.forEachEntry(entry -> {}));
+        }
+    }
+
+    private static List<String> describe(DirectorySource source) throws IOException {
+        List<String> entries = new ArrayList<>();
+        try (DirectorySource closeable = source) {
+            closeable.forEachEntry(entry -> entries.add(entry.getName() + " " + entry.getType() + " "
+                    + entry.getFileMode() + " " + entry.getTime()
+                    + (entry.isDirectory() ? "" : " " + entry.getContent().size())));
+        }
+        return entries;
+    }
+
+    private static Path directory(String name) throws IOException {
+        Path directory = Paths.get("target/directory-source", name);
+        FileUtils.deleteDirectory(directory.toFile());
+        Files.createDirectories(directory);
+        return directory;
+    }
+
+    private static void write(Path file, String content) throws IOException {
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
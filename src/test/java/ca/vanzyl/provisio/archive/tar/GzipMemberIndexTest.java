@@ -0,0 +1,145 @@
+package ca.vanzyl.provisio.archive.tar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ca.vanzyl.provisio.archive.Archiver;
+import ca.vanzyl.provisio.archive.UnArchiver;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+import org.apache.commons.compress.archivers.tar.TarArchiveEntry;
+import org.apache.commons.compress.archivers.tar.TarArchiveInputStream;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class GzipMemberIndexTest {
+
+    @Test
+    public void indexedEntriesAreReadWithoutInflatingPrecedingMembers() throws Exception {
+        Path directory = Paths.get("target/gzip-member-index-source");
+        Map<String, byte[]> files = createFiles(directory);
+        Path archive = Paths.get("target/gzip-member-index.tar.gz");
+        Archiver.builder()
+                .gzipCompressionChunkSize(32 * 1024)
+                .gzipMemberIndex(true)
+                .posixLongFileMode(true)
+                .build()
+                .archive(archive, directory);
+
+        GzipMemberIndex index = GzipMemberIndex.read(archive);
+        assertEquals(32 * 1024, index.chunkSize());
+        assertTrue(index.memberCount() > 10);
+        assertEquals(files.size() + 2, index.entryNames().size());
+
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            String name = "gzip-member-index-source/" + file.getKey();
+            long offset = index.entryOffset(name);
+            assertTrue(offset >= 0);
+            try (TarArchiveInputStream tar = new TarArchiveInputStream(index.open(archive, offset))) {
+                TarArchiveEntry entry = tar.getNextTarEntry();
+                assertEquals(name, entry.getName());
+                assertArrayEquals(file.getValue(), IOUtils.toByteArray(tar));
+            }
+        }
+        assertEquals(-1, index.entryOffset("missing"));
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        UnArchiver.builder().build().extractEntry(archive, "gzip-member-index-source/file-7.bin", output);
+        assertArrayEquals(files.get("file-7.bin"), output.toByteArray());
+    }
+
+    @Test
+    public void indexMembersAreSkippedByGzipReaders() throws Exception {
+        Path directory = Paths.get("target/gzip-member-index-source");
+        Map<String, byte[]> files = createFiles(directory);
+        Path archive = Paths.get("target/gzip-member-index-compatible.tar.gz");
+        Archiver.builder()
+                .gzipCompressionChunkSize(32 * 1024)
+                .gzipMemberIndex(true)
+                .posixLongFileMode(true)
+                .build()
+                .archive(archive, directory);
+
+        byte[] tar;
+        try (InputStream input = new GZIPInputStream(Files.newInputStream(archive))) {
+            tar = IOUtils.toByteArray(input);
+        }
+        assertEquals(GzipMemberIndex.read(archive).uncompressedLength(), tar.length);
+        assertEquals(0, tar.length % 512);
+
+        Map<String, byte[]> sequential = entries(new TarGzArchiveSource(archive));
+        assertEquals(
+                sequential.keySet(), entries(new TarGzArchiveSource(archive, 4)).keySet());
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            assertArrayEquals(file.getValue(), sequential.get("gzip-member-index-source/" + file.getKey()));
+        }
+    }
+
+    @Test
+    public void archivesWithoutIndexReturnNoIndex() throws Exception {
+        Path directory = Paths.get("target/gzip-member-index-source");
+        createFiles(directory);
+        Path archive = Paths.get("target/gzip-member-index-absent.tar.gz");
+        Archiver.builder().posixLongFileMode(true).build().archive(archive, directory);
+
+        assertNull(GzipMemberIndex.read(archive));
+    }
+
+    @Test
+    public void indexCannotBeCombinedWithPresetDictionary() {
+        try {
+            Archiver.builder().gzipMemberIndex(true).gzipPresetDictionary(true).build();
+            fail("Expected a member index with a preset dictionary to fail");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    private static Map<String, byte[]> createFiles(Path directory) throws IOException {
+        Files.createDirectories(directory.resolve("nested"));
+        Random random = new Random(9090);
+        Map<String, byte[]> files = new LinkedHashMap<>();
+        for (int index = 0; index < 12; index++) {
+            byte[] content = new byte[random.nextInt(96 * 1024)];
+            random.nextBytes(content);
+            files.put("file-" + index + ".bin", content);
+        }
+        StringBuilder longName = new StringBuilder("nested/");
+        while (longName.length() < 150) {
+            longName.append("long-name-");
+        }
+        files.put(longName.append(".txt").toString(), "configuration".getBytes(StandardCharsets.UTF_8));
+        for (Map.Entry<String, byte[]> file : files.entrySet()) {
+            Files.write(directory.resolve(file.getKey()), file.getValue());
+        }
+        return files;
+    }
+
+    private static Map<String, byte[]> entries(TarGzArchiveSource source) throws IOException {
+        Map<String, byte[]> entries = new LinkedHashMap<>();
+        try (TarGzArchiveSource closeable = source) {
+            closeable.forEachEntry(entry -> {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                if (!entry.isDirectory()) {
+                    try (InputStream input = entry.getContent().open()) {
+                        IOUtils.copy(input, content);
+                    }
+                }
+                entries.put(entry.getName(), content.toByteArray());
+            });
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,226 @@
+package ca.vanzyl.provisio.archive.tar;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import ca.vanzyl.provisio.archive.Archiver;
+import ca.vanzyl.provisio.archive.Source;
+import ca.vanzyl.provisio.archive.Sources;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipCompressorOutputStream;
+import org.apache.commons.compress.compressors.gzip.GzipParameters;
+import org.apache.commons.io.IOUtils;
+import org.junit.Test;
+
+public class ParallelGzipInputStreamTest {
+
+    @Test
+    public void concatenatedMembersAreInflatedSpeculativelyInOrder() throws Exception {
+        byte[] content = content(64 * 1024 * 10 + 123);
+
+        ParallelGzipInputStream gzip =
+                new ParallelGzipInputStream(new ByteArrayInputStream(members(content, 64 * 1024)), 4);
+        assertArrayEquals(content, readAll(gzip));
+
+        assertEquals(11, gzip.speculatedMembers());
+    }
+
+    @Test
+    public void pendingMembersClaimAtMostTheSpeculativeOutputLimit() throws Exception {
+        byte[] content = content(64 * 1024 * 20);
+
+        ParallelGzipInputStream gzip =
+                new ParallelGzipInputStream(new ByteArrayInputStream(members(content, 64 * 1024)), 8, 200 * 1024);
+        assertArrayEquals(content, readAll(gzip));
+
+        assertEquals(20, gzip.speculatedMembers());
+        assertEquals(3 * 64 * 1024, gzip.maximumPendingOutput());
+
+        // Highly compressible members grow their output buffers well beyond the initial allocation
+        byte[] zeros = new byte[4 * 1024 * 1024];
+        assertArrayEquals(zeros, decompress(members(zeros, 1024 * 1024), 2));
+    }
+
+    @Test
+    public void singleMemberInputIsInflatedSequentially() throws Exception {
+        byte[] content = content(300 * 1024);
+
+        assertArrayEquals(content, decompress(members(content, content.length), 2));
+        assertArrayEquals(new byte[0], decompress(members(new byte[0], 1), 2));
+    }
+
+    @Test
+    public void optionalHeaderFieldsAreSkipped() throws Exception {
+        byte[] content = content(10_000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        GzipParameters parameters = new GzipParameters();
+        parameters.setFileName("content.bin");
+        parameters.setComment("comment");
+        for (int member = 0; member < 3; member++) {
+            try (GzipCompressorOutputStream gzip = new GzipCompressorOutputStream(output, parameters)) {
+                gzip.write(content);
+            }
+        }
+        byte[] expected = new byte[content.length * 3];
+        for (int member = 0; member < 3; member++) {
+            System.arraycopy(content, 0, expected, member * content.length, content.length);
+        }
+
+        assertArrayEquals(expected, decompress(output.toByteArray(), 3));
+    }
+
+    @Test
+    public void falseMemberBoundaryFallsBackToSequentialInflation() throws Exception {
+        // Stored DEFLATE blocks keep this embedded gzip signature, preceded by a plausible trailer, in the member
+        byte[] content = new byte[4096];
+        byte[] signature = {0, 0, 0, 0, 0, 0, 0, 0, 0x1f, (byte) 0x8b, 8, 0, 0, 0, 0, 0, 0, (byte) 0xff};
+        System.arraycopy(signature, 0, content, 1000, signature.length);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        for (int member = 0; member < 2; member++) {
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output) {
+                {
+                    def.setLevel(Deflater.NO_COMPRESSION);
+                }
+            }) {
+                gzip.write(content);
+            }
+        }
+        byte[] expected = Arrays.copyOf(content, content.length * 2);
+        System.arraycopy(content, 0, expected, content.length, content.length);
+
+        assertArrayEquals(expected, decompress(output.toByteArray(), 2));
+    }
+
+    @Test
+    public void corruptTruncatedAndTrailingInputIsRejected() throws Exception {
+        byte[] compressed = members(content(64 * 1024 * 3), 64 * 1024);
+
+        byte[] corruptCrc = compressed.clone();
+        corruptCrc[corruptCrc.length - 8] ^= 1;
+        assertFailure(corruptCrc, "Gzip-compressed data is corrupt");
+
+        byte[] corruptSize = compressed.clone();
+        corruptSize[corruptSize.length - 1] ^= 1;
+        assertFailure(corruptSize, null);
+
+        assertFailure(Arrays.copyOf(compressed, compressed.length / 2), null);
+        assertFailure(Arrays.copyOf(compressed, compressed.length - 3), null);
+
+        byte[] trailing = Arrays.copyOf(compressed, compressed.length + 4);
+        trailing[compressed.length] = 1;
+        assertFailure(trailing, "Garbage after a valid .gz stream");
+
+        assertFailure(new byte[0], "Input is not in the .gz format");
+        assertFailure(new byte[] {1, 2, 3}, "Input is not in the .gz format");
+    }
+
+    @Test
+    public void tarGzSourceReadsTheSameEntriesWithParallelDecompression() throws Exception {
+        Path directory = Paths.get("target/parallel-gunzip-source");
+        Files.createDirectories(directory);
+        Random random = new Random(424242);
+        for (int index = 0; index < 20; index++) {
+            byte[] file = new byte[random.nextInt(200 * 1024)];
+            random.nextBytes(file);
+            Files.write(directory.resolve("file-" + index + ".bin"), file);
+        }
+        Path archive = Paths.get("target/parallel-gunzip.tar.gz");
+        Archiver.builder()
+                .gzipCompressionChunkSize(32 * 1024)
+                .gzipCompressionLevel(1)
+                .build()
+                .archive(archive, directory);
+
+        assertEquals(entries(Sources.tarGz(archive)), entries(Sources.tarGz(archive, 4)));
+    }
+
+    @Test
+    public void invalidThreadCountsAreRejected() {
+        try {
+            Sources.tarGz(Paths.get("archive.tar.gz"), 0);
+            fail("Expected invalid decompression threads to fail");
+        } catch (IllegalArgumentException expected) {
+            // Expected.
+        }
+    }
+
+    private void assertFailure(byte[] compressed, String message) throws Exception {
+        try {
+            decompress(compressed, 2);
+            fail("Expected invalid gzip input to fail");
+        } catch (IOException expected) {
+            if (message != null) {
+                assertEquals(message, expected.getMessage());
+            }
+        }
+    }
+
+    private Map<String, String> entries(Source source) throws Exception {
+        Map<String, String> entries = new LinkedHashMap<>();
+        try (Source closeable = source) {
+            closeable.forEachEntry(entry -> {
+                String content = "";
+                if (!entry.isDirectory()) {
+                    try (InputStream input = entry.getContent().open()) {
+                        content = Integer.toHexString(Arrays.hashCode(IOUtils.toByteArray(input)));
+                    }
+                }
+                entries.put(entry.getName(), content);
+            });
+        }
+        assertTrue(entries.size() > 20);
+        return entries;
+    }
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        Random random = new Random(length);
+        for (int index = 0; index < length; index++) {
+            content[index] = (byte) (random.nextInt(16) + 'a');
+        }
+        return content;
+    }
+
+    private static byte[] members(byte[] content, int memberSize) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int offset = 0;
+        do {
+            int length = Math.min(memberSize, content.length - offset);
+            try (GZIPOutputStream gzip = new GZIPOutputStream(output)) {
+                gzip.write(content, offset, length);
+            }
+            offset += length;
+        } while (offset < content.length);
+        return output.toByteArray();
+    }
+
+    private static byte[] decompress(byte[] compressed, int threads) throws IOException {
+        try (InputStream input = new ParallelGzipInputStream(new ByteArrayInputStream(compressed), threads)) {
+            return readAll(input);
+        }
+    }
+
+    private static byte[] readAll(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int count;
+        while ((count = input.read(buffer)) != -1) {
+            output.write(buffer, 0, count);
+        }
+        return output.toByteArray();
+    }
+}